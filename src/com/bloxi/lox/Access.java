@@ -0,0 +1,20 @@
+package com.bloxi.lox;
+
+/**
+ * How a resolved Variable, Assign or This node reaches its variable. The
+ * Resolver picks one for every use site once it knows whether inner functions
+ * capture the variable.
+ */
+final class Access {
+  private Access() {
+  }
+
+  /** Not declared in any enclosing function, so looked up in the global scope */
+  static final byte GLOBAL = 0;
+  /** A slot of the current frame */
+  static final byte LOCAL = 1;
+  /** A slot of the current frame holding the Upvalue of a captured variable */
+  static final byte BOXED = 2;
+  /** An upvalue of the running closure, captured from an enclosing function */
+  static final byte UPVALUE = 3;
+}
@@ -87,6 +87,12 @@ class AstPrinter implements Expr.Visitor<String> {
     return null;
   }
 
+  @Override
+  public String visitSuperExpr(Expr.Super expr) {
+    // TODO Auto-generated method stub
+    return null;
+  }
+
   // NOTE: Driver code for testing
   // public static void main(String[] args) {
   //// 1 + 2 ? 3 * 4 : 5 / 6;
@@ -0,0 +1,65 @@
+package com.bloxi.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compiled function body (or the top level script) for the VM: the code
+ * stream, its constant pool and a line table with one entry per code byte.
+ */
+class Chunk implements LoxFunction.Body {
+  /** Function this chunk was compiled from, or null for a script */
+  final Stmt.Function declaration;
+  byte[] code = new byte[64];
+  int[] lines = new int[64];
+  int count = 0;
+  Object[] constants = new Object[16];
+  int constantCount = 0;
+  private final Map<Object, Integer> constantIndex = new HashMap<>();
+  /** Deepest the operand stack gets while running this chunk */
+  int maxStack = 0;
+
+  Chunk(Stmt.Function declaration) {
+    this.declaration = declaration;
+  }
+
+  @Override
+  public Object run(Interpreter interpreter, Environment environment) {
+    return interpreter.vm().run(this, environment);
+  }
+
+  /** Appends a byte to the code stream */
+  void write(byte value, int line) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      lines = Arrays.copyOf(lines, count * 2);
+    }
+
+    code[count] = value;
+    lines[count] = line;
+    count++;
+  }
+
+  /**
+   * Adds a value to the constant pool. Values that are already in the pool are
+   * reused. Tokens and declarations don't override equals, so only literals are
+   * ever shared.
+   *
+   * @param value constant to add
+   * @return index of the constant
+   */
+  int addConstant(Object value) {
+    Integer index = constantIndex.get(value);
+    if (index != null)
+      return index;
+
+    if (constantCount == constants.length) {
+      constants = Arrays.copyOf(constants, constantCount * 2);
+    }
+
+    constants[constantCount] = value;
+    constantIndex.put(value, constantCount);
+    return constantCount++;
+  }
+}
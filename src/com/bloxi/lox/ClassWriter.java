@@ -0,0 +1,382 @@
+package com.bloxi.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes just enough of the JVM class file format for the JvmCompiler. Classes
+ * are written with version 49 (Java 5), which the JVM still verifies by type
+ * inference, so no stack map frames have to be computed.
+ */
+class ClassWriter {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  private static final int VERSION = 49;
+
+  // constant pool tags
+  private static final int UTF8 = 1;
+  private static final int INTEGER = 3;
+  private static final int CLASS = 7;
+  private static final int STRING = 8;
+  private static final int FIELD_REF = 9;
+  private static final int METHOD_REF = 10;
+  private static final int INTERFACE_METHOD_REF = 11;
+  private static final int NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> poolIndex = new HashMap<>();
+  private int poolCount = 1;
+
+  private final int thisClass;
+  private final int superClass;
+  private final int[] interfaces;
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<Method> methods = new ArrayList<>();
+
+  ClassWriter(String name, String superName, String... interfaceNames) {
+    thisClass = classRef(name);
+    superClass = classRef(superName);
+    interfaces = new int[interfaceNames.length];
+    for (int i = 0; i < interfaceNames.length; i++) {
+      interfaces[i] = classRef(interfaceNames[i]);
+    }
+  }
+
+  int utf8(String value) {
+    return entry("U" + value, out -> {
+      out.writeByte(UTF8);
+      out.writeUTF(value);
+    });
+  }
+
+  int integer(int value) {
+    return entry("I" + value, out -> {
+      out.writeByte(INTEGER);
+      out.writeInt(value);
+    });
+  }
+
+  int classRef(String name) {
+    int nameIndex = utf8(name);
+    return entry("C" + name, out -> {
+      out.writeByte(CLASS);
+      out.writeShort(nameIndex);
+    });
+  }
+
+  int string(String value) {
+    int valueIndex = utf8(value);
+    return entry("S" + value, out -> {
+      out.writeByte(STRING);
+      out.writeShort(valueIndex);
+    });
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(FIELD_REF, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(METHOD_REF, owner, name, descriptor);
+  }
+
+  int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(INTERFACE_METHOD_REF, owner, name, descriptor);
+  }
+
+  void field(int access, String name, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+    fields.add(bytes.toByteArray());
+  }
+
+  /** Starts a method. Its code is written through the returned object. */
+  Method method(int access, String name, String descriptor) {
+    Method method = new Method(access, utf8(name), utf8(descriptor));
+    methods.add(method);
+    return method;
+  }
+
+  byte[] toByteArray() {
+    // Attribute names have to be in the pool before it is written out
+    int codeName = utf8("Code");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      pool.writeTo(out);
+
+      out.writeShort(ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(interfaces.length);
+      for (int index : interfaces) {
+        out.writeShort(index);
+      }
+
+      out.writeShort(fields.size());
+      for (byte[] field : fields) {
+        out.write(field);
+      }
+
+      out.writeShort(methods.size());
+      for (Method method : methods) {
+        method.writeTo(out, codeName);
+      }
+
+      // no class attributes
+      out.writeShort(0);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+    return bytes.toByteArray();
+  }
+
+  private interface PoolWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /** Adds a constant pool entry unless an equal one already exists */
+  private int entry(String key, PoolWriter writer) {
+    Integer index = poolIndex.get(key);
+    if (index != null)
+      return index;
+
+    try {
+      writer.write(poolOut);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+
+    poolIndex.put(key, poolCount);
+    return poolCount++;
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int ownerIndex = classRef(owner);
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    int nameAndType = entry("N" + name + ":" + descriptor, out -> {
+      out.writeByte(NAME_AND_TYPE);
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+    });
+
+    return entry(tag + owner + "." + name + ":" + descriptor, out -> {
+      out.writeByte(tag);
+      out.writeShort(ownerIndex);
+      out.writeShort(nameAndType);
+    });
+  }
+
+  /** A position in a method's code that jumps can target */
+  static class Label {
+    private int position = -1;
+    private final List<Integer> fixups = new ArrayList<>();
+  }
+
+  /** Code of one method. The operand stack depth is tracked as it is written. */
+  static class Method {
+    // opcodes used by the JvmCompiler
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ALOAD = 0x19;
+    static final int ASTORE = 0x3a;
+    static final int AALOAD = 0x32;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DUP_X1 = 0x5a;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int CHECKCAST = 0xc0;
+
+    private final int access;
+    private final int name;
+    private final int descriptor;
+    private int maxLocals = 0;
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+
+    private Method(int access, int name, int descriptor) {
+      this.access = access;
+      this.name = name;
+      this.descriptor = descriptor;
+    }
+
+    /** Sets the number of local variable slots, including the arguments */
+    void maxLocals(int count) {
+      maxLocals = count;
+    }
+
+    /** Size of the code written so far, in bytes */
+    int length() {
+      return length;
+    }
+
+    /**
+     * Writes an instruction without operands.
+     *
+     * @param opcode instruction
+     * @param effect net number of values it pushes onto the operand stack
+     */
+    void op(int opcode, int effect) {
+      writeByte(opcode);
+      adjustStack(effect);
+    }
+
+    /** Writes an instruction with a one byte operand */
+    void op1(int opcode, int operand, int effect) {
+      writeByte(opcode);
+      writeByte(operand);
+      adjustStack(effect);
+    }
+
+    /** Writes an instruction with a two byte operand */
+    void op2(int opcode, int operand, int effect) {
+      writeByte(opcode);
+      writeShort(operand);
+      adjustStack(effect);
+    }
+
+    void invokeInterface(int methodRef, int argumentSlots, int effect) {
+      writeByte(INVOKEINTERFACE);
+      writeShort(methodRef);
+      writeByte(argumentSlots + 1);
+      writeByte(0);
+      adjustStack(effect);
+    }
+
+    void loadInt(ClassWriter classWriter, int value) {
+      if (value >= -1 && value <= 5) {
+        op(ICONST_0 + value, 1);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        op1(BIPUSH, value, 1);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        op2(SIPUSH, value, 1);
+      } else {
+        op2(LDC_W, classWriter.integer(value), 1);
+      }
+    }
+
+    void load(int local) {
+      writeByte(ALOAD);
+      writeByte(local);
+      adjustStack(1);
+    }
+
+    void store(int local) {
+      writeByte(ASTORE);
+      writeByte(local);
+      adjustStack(-1);
+    }
+
+    /**
+     * Writes a jump to a label. Conditional jumps pop the value they test.
+     */
+    void jump(int opcode, Label target) {
+      int start = length;
+      writeByte(opcode);
+      if (target.position >= 0) {
+        writeShort(target.position - start);
+      } else {
+        target.fixups.add(start);
+        writeShort(0);
+      }
+      if (opcode != GOTO)
+        adjustStack(-1);
+    }
+
+    /** Places a label at the current position */
+    void mark(Label label) {
+      label.position = length;
+      for (int start : label.fixups) {
+        int offset = length - start;
+        code[start + 1] = (byte) (offset >> 8);
+        code[start + 2] = (byte) offset;
+      }
+      label.fixups.clear();
+    }
+
+    /** Sets the tracked stack depth after an unconditional jump */
+    void setStack(int depth) {
+      stack = depth;
+    }
+
+    int stack() {
+      return stack;
+    }
+
+    private void adjustStack(int effect) {
+      stack += effect;
+      if (stack > maxStack)
+        maxStack = stack;
+    }
+
+    private void writeByte(int value) {
+      if (length == code.length)
+        code = Arrays.copyOf(code, length * 2);
+      code[length++] = (byte) value;
+    }
+
+    private void writeShort(int value) {
+      writeByte(value >> 8);
+      writeByte(value);
+    }
+
+    private void writeTo(DataOutputStream out, int codeName) throws IOException {
+      out.writeShort(access);
+      out.writeShort(name);
+      out.writeShort(descriptor);
+
+      // a single Code attribute
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(length);
+      out.write(code, 0, length);
+      // no exception table and no attributes
+      out.writeShort(0);
+      out.writeShort(0);
+    }
+  }
+}
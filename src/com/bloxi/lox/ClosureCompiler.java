@@ -0,0 +1,647 @@
+package com.bloxi.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles resolved statements once into a tree of small executable nodes.
+ * Children are linked when the node is built, resolved slots and operators
+ * are baked into the node, so running the program never goes back to the
+ * syntax tree. Frames are the same Environments the tree-walker builds.
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Node>, Stmt.Visitor<ClosureCompiler.Action> {
+  /** Executable form of an expression */
+  interface Node {
+    Object evaluate(Environment environment);
+  }
+
+  /** Executable form of a statement */
+  interface Action {
+    Completion execute(Environment environment);
+  }
+
+  private final Interpreter interpreter;
+  private final Environment globals;
+
+  ClosureCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+  }
+
+  /** Compiles and runs a top level script whose frame has the given number of slots */
+  void interpret(List<Stmt> statements, int slotCount) {
+    Action[] script = compile(statements);
+    Environment frame = new Environment(slotCount, Environment.NO_UPVALUES);
+
+    try {
+      for (Action action : script) {
+        action.execute(frame);
+      }
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  @Override
+  public Node visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    return environment -> value;
+  }
+
+  @Override
+  public Node visitUnaryExpr(Expr.Unary expr) {
+    Node right = compile(expr.right);
+    Token operator = expr.operator;
+
+    switch (operator.type) {
+      case MINUS:
+        return environment -> {
+          Object rhs = right.evaluate(environment);
+          Interpreter.checkNumberOperand(operator, rhs);
+          return -(double) rhs;
+        };
+      case BANG:
+        return environment -> !Interpreter.isTruthy(right.evaluate(environment));
+    }
+
+    // should be unreachable
+    return environment -> null;
+  }
+
+  @Override
+  public Node visitBinaryExpr(Expr.Binary expr) {
+    Node left = compile(expr.left);
+    Node right = compile(expr.right);
+    Token operator = expr.operator;
+
+    switch (operator.type) {
+      case GREATER:
+        return environment -> {
+          Object lhs = left.evaluate(environment);
+          Object rhs = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, lhs, rhs);
+          return (double) lhs > (double) rhs;
+        };
+      case GREATER_EQUAL:
+        return environment -> {
+          Object lhs = left.evaluate(environment);
+          Object rhs = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, lhs, rhs);
+          return (double) lhs >= (double) rhs;
+        };
+      case LESS:
+        return environment -> {
+          Object lhs = left.evaluate(environment);
+          Object rhs = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, lhs, rhs);
+          return (double) lhs < (double) rhs;
+        };
+      case LESS_EQUAL:
+        return environment -> {
+          Object lhs = left.evaluate(environment);
+          Object rhs = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, lhs, rhs);
+          return (double) lhs <= (double) rhs;
+        };
+      case EQUAL_EQUAL:
+        return environment -> Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+      case BANG_EQUAL:
+        return environment -> !Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+      case MINUS:
+        return environment -> {
+          Object lhs = left.evaluate(environment);
+          Object rhs = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, lhs, rhs);
+          return (double) lhs - (double) rhs;
+        };
+      case STAR:
+        return environment -> {
+          Object lhs = left.evaluate(environment);
+          Object rhs = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, lhs, rhs);
+          return (double) lhs * (double) rhs;
+        };
+      case SLASH:
+        return environment -> {
+          Object lhs = left.evaluate(environment);
+          Object rhs = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, lhs, rhs);
+          if ((double) rhs == 0) {
+            throw new RuntimeError(operator, "Cannot divide by zero.");
+          }
+          return (double) lhs / (double) rhs;
+        };
+      case PLUS:
+        return environment -> {
+          Object lhs = left.evaluate(environment);
+          Object rhs = right.evaluate(environment);
+          if (lhs instanceof Double && rhs instanceof Double)
+            return (double) lhs + (double) rhs;
+          // if either side is string
+          if (Interpreter.isString(lhs) || Interpreter.isString(rhs))
+            return Rope.concat(lhs, rhs);
+
+          throw new RuntimeError(operator, "At least one of the operands must be a string.");
+        };
+      case COMMA:
+        // The separator evaluates both sides and yields nil
+        return environment -> {
+          left.evaluate(environment);
+          right.evaluate(environment);
+          return null;
+        };
+    }
+
+    // should be unreachable
+    return environment -> null;
+  }
+
+  @Override
+  public Node visitTernaryExpr(Expr.Ternary expr) {
+    Node condition = compile(expr.condition);
+    Node trueExpr = compile(expr.trueExpr);
+    Node falseExpr = compile(expr.falseExpr);
+
+    return environment -> Interpreter.isTruthy(condition.evaluate(environment)) ? trueExpr.evaluate(environment)
+        : falseExpr.evaluate(environment);
+  }
+
+  @Override
+  public Node visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Node visitVariableExpr(Expr.Variable expr) {
+    if (expr.access == Access.GLOBAL) {
+      Global global = Global.of(globals, expr);
+      Token name = expr.name;
+      return environment -> global.get(name);
+    }
+    return variable(expr.access, expr.slot);
+  }
+
+  @Override
+  public Node visitAssignExpr(Expr.Assign expr) {
+    Node value = compile(expr.value);
+    Token name = expr.name;
+
+    int slot = expr.slot;
+    switch (expr.access) {
+      case Access.LOCAL:
+        return environment -> environment.slots[slot] = value.evaluate(environment);
+      case Access.BOXED:
+        return environment -> ((Upvalue) environment.slots[slot]).value = value.evaluate(environment);
+      case Access.UPVALUE:
+        return environment -> environment.upvalues[slot].value = value.evaluate(environment);
+    }
+
+    Global global = Global.of(globals, expr);
+    return environment -> {
+      Object result = value.evaluate(environment);
+      global.assign(name, result);
+      return result;
+    };
+  }
+
+  @Override
+  public Node visitLogicalExpr(Expr.Logical expr) {
+    Node left = compile(expr.left);
+    Node right = compile(expr.right);
+
+    // short circuiting
+    if (expr.operator.type == TokenType.OR) {
+      return environment -> {
+        Object lhs = left.evaluate(environment);
+        return Interpreter.isTruthy(lhs) ? lhs : right.evaluate(environment);
+      };
+    }
+
+    return environment -> {
+      Object lhs = left.evaluate(environment);
+      return Interpreter.isTruthy(lhs) ? right.evaluate(environment) : lhs;
+    };
+  }
+
+  @Override
+  public Node visitCallExpr(Expr.Call expr) {
+    return call(expr, false);
+  }
+
+  /** A call, or a tail call that returns a call to a Lox function as a TailCall */
+  private Node call(Expr.Call expr, boolean tail) {
+    if (expr.callee instanceof Expr.Get)
+      return invoke(expr, (Expr.Get) expr.callee, tail);
+
+    Node callee = compile(expr.callee);
+    Node[] arguments = compileAll(expr.arguments);
+    Token paren = expr.paren;
+
+    return environment -> {
+      Object function = callee.evaluate(environment);
+
+      List<Object> values = new ArrayList<>(arguments.length);
+      for (Node argument : arguments) {
+        values.add(argument.evaluate(environment));
+      }
+
+      if (!(function instanceof LoxCallable)) {
+        throw new RuntimeError(paren, "Can only call functions and classes.");
+      }
+
+      LoxCallable callable = (LoxCallable) function;
+      Interpreter.checkArity(callable, values.size(), paren);
+
+      if (tail && callable instanceof LoxFunction)
+        return new TailCall((LoxFunction) callable, null, values);
+      return callable.call(interpreter, values);
+    };
+  }
+
+  /** A call on a property, which skips binding the method */
+  private Node invoke(Expr.Call expr, Expr.Get get, boolean tail) {
+    Node object = compile(get.object);
+    PropertyCache cache = PropertyCache.of(get);
+    Node[] arguments = compileAll(expr.arguments);
+    Token paren = expr.paren;
+
+    return environment -> {
+      Object receiver = object.evaluate(environment);
+      LoxFunction method = cache.method(receiver);
+      Object function = method == null ? cache.get(receiver) : null;
+
+      List<Object> values = new ArrayList<>(arguments.length);
+      for (Node argument : arguments) {
+        values.add(argument.evaluate(environment));
+      }
+
+      if (method == null && !(function instanceof LoxCallable)) {
+        throw new RuntimeError(paren, "Can only call functions and classes.");
+      }
+
+      LoxCallable callable = method != null ? method : (LoxCallable) function;
+      Interpreter.checkArity(callable, values.size(), paren);
+
+      if (method != null) {
+        if (tail)
+          return new TailCall(method, (LoxInstance) receiver, values);
+        return method.invoke(interpreter, (LoxInstance) receiver, values);
+      }
+      if (tail && callable instanceof LoxFunction)
+        return new TailCall((LoxFunction) callable, null, values);
+      return callable.call(interpreter, values);
+    };
+  }
+
+  @Override
+  public Node visitGetExpr(Expr.Get expr) {
+    Node object = compile(expr.object);
+    PropertyCache cache = PropertyCache.of(expr);
+
+    return environment -> cache.get(object.evaluate(environment));
+  }
+
+  @Override
+  public Node visitSetExpr(Expr.Set expr) {
+    Node object = compile(expr.object);
+    Node value = compile(expr.value);
+    Token name = expr.name;
+    PropertyCache cache = PropertyCache.of(expr);
+
+    return environment -> {
+      Object instance = object.evaluate(environment);
+      if (!(instance instanceof LoxInstance))
+        throw new RuntimeError(name, "Only instances have fields.");
+
+      Object result = value.evaluate(environment);
+      cache.set((LoxInstance) instance, result);
+      return result;
+    };
+  }
+
+  @Override
+  public Node visitThisExpr(Expr.This expr) {
+    return variable(expr.access, expr.slot);
+  }
+
+  @Override
+  public Node visitSuperExpr(Expr.Super expr) {
+    Node superclass = compile(expr.superclass);
+    Node receiver = compile(expr.receiver);
+    PropertyCache cache = PropertyCache.of(expr);
+
+    return environment -> {
+      LoxClass loxClass = (LoxClass) superclass.evaluate(environment);
+      LoxInstance object = (LoxInstance) receiver.evaluate(environment);
+      return cache.getSuper(loxClass, object);
+    };
+  }
+
+  @Override
+  public Action visitBlockStmt(Stmt.Block stmt) {
+    // the block's locals have their own slots in the current frame
+    Action[] statements = compile(stmt.statements);
+
+    return environment -> {
+      for (Action statement : statements) {
+        Completion completion = statement.execute(environment);
+        if (completion != Completion.NORMAL)
+          return completion;
+      }
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Action visitExpressionStmt(Stmt.Expression stmt) {
+    Node expression = compile(stmt.expression);
+
+    if (Lox.replMode) {
+      return environment -> {
+        System.out.println(Interpreter.stringify(expression.evaluate(environment)));
+        return Completion.NORMAL;
+      };
+    }
+
+    return environment -> {
+      expression.evaluate(environment);
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Action visitPrintStmt(Stmt.Print stmt) {
+    Node expression = compile(stmt.expression);
+    return environment -> {
+      System.out.println(Interpreter.stringify(expression.evaluate(environment)));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Action visitVarStmt(Stmt.Var stmt) {
+    Symbol name = stmt.name.symbol;
+    int slot = stmt.slot;
+    Node initializer = stmt.initializer == null ? environment -> null : compile(stmt.initializer);
+
+    if (slot < 0) {
+      return environment -> {
+        globals.define(name, initializer.evaluate(environment));
+        return Completion.NORMAL;
+      };
+    }
+    if (stmt.captured) {
+      return environment -> {
+        environment.slots[slot] = new Upvalue(initializer.evaluate(environment));
+        return Completion.NORMAL;
+      };
+    }
+    return environment -> {
+      environment.slots[slot] = initializer.evaluate(environment);
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Action visitIfStmt(Stmt.If stmt) {
+    Node condition = compile(stmt.condition);
+    Action thenBranch = compile(stmt.thenBranch);
+
+    if (stmt.elseBranch == null) {
+      return environment -> {
+        if (Interpreter.isTruthy(condition.evaluate(environment)))
+          return thenBranch.execute(environment);
+        return Completion.NORMAL;
+      };
+    }
+
+    Action elseBranch = compile(stmt.elseBranch);
+    return environment -> {
+      if (Interpreter.isTruthy(condition.evaluate(environment)))
+        return thenBranch.execute(environment);
+      return elseBranch.execute(environment);
+    };
+  }
+
+  @Override
+  public Action visitWhileStmt(Stmt.While stmt) {
+    Node condition = compile(stmt.condition);
+    CountedLoop counted = CountedLoop.of(stmt);
+    if (counted != CountedLoop.NONE)
+      return countedLoop(counted, condition);
+
+    Action body = compile(stmt.body);
+    return environment -> {
+      while (Interpreter.isTruthy(condition.evaluate(environment))) {
+        Completion completion = body.execute(environment);
+        if (completion == Completion.BREAK)
+          break;
+        if (completion == Completion.RETURN)
+          return completion;
+      }
+      return Completion.NORMAL;
+    };
+  }
+
+  /**
+   * A counted loop tests and steps its counter directly instead of running the
+   * condition and the increment. Should the counter or the limit not be a
+   * number, that run of the loop goes on as written.
+   */
+  private Action countedLoop(CountedLoop counted, Node condition) {
+    Action[] body = compile(counted.body);
+    Action increment = compile(counted.increment);
+    Node limit = compile(counted.limit);
+    int slot = counted.slot;
+    double step = counted.step;
+
+    return environment -> {
+      boolean counting = true;
+      loop: while (true) {
+        if (counting) {
+          Object counter = environment.slots[slot];
+          Object bound = limit.evaluate(environment);
+          if (counter instanceof Double && bound instanceof Double) {
+            if (!counted.test((double) counter, (double) bound))
+              break;
+          } else {
+            counting = false;
+          }
+        }
+        if (!counting && !Interpreter.isTruthy(condition.evaluate(environment)))
+          break;
+
+        for (Action statement : body) {
+          Completion completion = statement.execute(environment);
+          if (completion == Completion.BREAK)
+            break loop;
+          if (completion == Completion.RETURN)
+            return completion;
+        }
+
+        Object counter = environment.slots[slot];
+        if (counting && counter instanceof Double) {
+          environment.slots[slot] = (double) counter + step;
+        } else {
+          counting = false;
+          increment.execute(environment);
+        }
+      }
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Action visitBreakStmt(Stmt.Break stmt) {
+    return environment -> Completion.BREAK;
+  }
+
+  @Override
+  public Action visitFunctionStmt(Stmt.Function stmt) {
+    LoxFunction.Body body = function(stmt);
+    Symbol name = stmt.name.symbol;
+    int slot = stmt.slot;
+
+    if (slot < 0) {
+      return environment -> {
+        globals.define(name, new LoxFunction(stmt, Upvalue.capture(stmt, environment), false, body));
+        return Completion.NORMAL;
+      };
+    }
+    if (stmt.captured) {
+      // a function that calls itself captures its own variable
+      return environment -> {
+        Upvalue variable = new Upvalue(null);
+        environment.slots[slot] = variable;
+        variable.value = new LoxFunction(stmt, Upvalue.capture(stmt, environment), false, body);
+        return Completion.NORMAL;
+      };
+    }
+    return environment -> {
+      environment.slots[slot] = new LoxFunction(stmt, Upvalue.capture(stmt, environment), false, body);
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Action visitImportStmt(Stmt.Import stmt) {
+    Module module = stmt.module;
+    return environment -> {
+      // compiled when first run, since most imports of a module never run it
+      if (module.start()) {
+        Environment frame = new Environment(module.slotCount, Environment.NO_UPVALUES);
+        for (Action action : compile(module.statements)) {
+          action.execute(frame);
+        }
+      }
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Action visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      return environment -> {
+        interpreter.returnValue = null;
+        return Completion.RETURN;
+      };
+    }
+
+    Node value = stmt.tailCall ? call((Expr.Call) stmt.value, true) : compile(stmt.value);
+    return environment -> {
+      interpreter.returnValue = value.evaluate(environment);
+      return Completion.RETURN;
+    };
+  }
+
+  @Override
+  public Action visitClassStmt(Stmt.Class stmt) {
+    Node superclassNode = stmt.superclass == null ? null : compile(stmt.superclass);
+    LoxFunction.Body[] bodies = new LoxFunction.Body[stmt.methods.size()];
+    for (int i = 0; i < bodies.length; i++) {
+      bodies[i] = function(stmt.methods.get(i));
+    }
+
+    return environment -> {
+      Object superclass = null;
+      if (superclassNode != null) {
+        superclass = superclassNode.evaluate(environment);
+        if (!(superclass instanceof LoxClass)) {
+          throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+        }
+      }
+
+      if (stmt.slot >= 0)
+        environment.declare(stmt.slot, stmt.captured);
+      if (superclassNode != null)
+        environment.slots[stmt.superSlot] = new Upvalue(superclass);
+
+      Map<Symbol, LoxFunction> methods = new HashMap<>();
+      for (int i = 0; i < bodies.length; i++) {
+        Stmt.Function method = stmt.methods.get(i);
+        boolean isInitializer = method.name.symbol == Symbol.INIT;
+        methods.put(method.name.symbol,
+            new LoxFunction(method, Upvalue.capture(method, environment), isInitializer, bodies[i]));
+      }
+
+      LoxClass loxClass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+      if (stmt.slot >= 0) {
+        environment.define(stmt.slot, stmt.captured, loxClass);
+      } else {
+        globals.define(stmt.name.symbol, loxClass);
+      }
+      return Completion.NORMAL;
+    };
+  }
+
+  /** Compiles a function body. A 'return' completes it with its value left in the interpreter. */
+  LoxFunction.Body function(Stmt.Function declaration) {
+    Action[] statements = compile(declaration.body);
+
+    return (interpreter, environment) -> {
+      for (Action statement : statements) {
+        if (statement.execute(environment) == Completion.RETURN)
+          return interpreter.returnValue;
+      }
+      return null;
+    };
+  }
+
+  /** Builds a read of a resolved local or upvalue */
+  private Node variable(byte access, int slot) {
+    switch (access) {
+      case Access.LOCAL:
+        return environment -> environment.slots[slot];
+      case Access.BOXED:
+        return environment -> ((Upvalue) environment.slots[slot]).value;
+      default:
+        return environment -> environment.upvalues[slot].value;
+    }
+  }
+
+  private Node compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  Action compile(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Node[] compileAll(List<Expr> exprs) {
+    Node[] nodes = new Node[exprs.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = compile(exprs.get(i));
+    }
+    return nodes;
+  }
+
+  private Action[] compile(List<Stmt> statements) {
+    Action[] actions = new Action[statements.size()];
+    for (int i = 0; i < actions.length; i++) {
+      actions[i] = compile(statements.get(i));
+    }
+    return actions;
+  }
+}
@@ -0,0 +1,522 @@
+package com.bloxi.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lowers resolved statements into bytecode for the VM. Each function body is
+ * compiled into its own chunk. Frames are the ones the tree-walker builds, so
+ * the resolver's slots and upvalues can be used unchanged.
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private final Chunk chunk;
+  /** Operand stack depth at the current point of the code */
+  private int stackDepth = 0;
+  /** Innermost loop being compiled, used to compile 'break' */
+  private Loop loop = null;
+
+  private static class Loop {
+    final Loop enclosing;
+    final List<Integer> breakJumps = new ArrayList<>();
+
+    Loop(Loop enclosing) {
+      this.enclosing = enclosing;
+    }
+  }
+
+  Compiler() {
+    this(new Chunk(null));
+  }
+
+  private Compiler(Chunk chunk) {
+    this.chunk = chunk;
+  }
+
+  /** Compiles a top level script */
+  Chunk compile(List<Stmt> statements) {
+    compileBody(statements, 0);
+    return chunk;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    // Literals carry no token, so they are attributed to the line of the
+    // previous instruction.
+    int line = lastLine();
+    if (expr.value == null) {
+      emit(OpCode.NIL, 1, line);
+    } else if (expr.value.equals(true)) {
+      emit(OpCode.TRUE, 1, line);
+    } else if (expr.value.equals(false)) {
+      emit(OpCode.FALSE, 1, line);
+    } else {
+      emit(OpCode.CONSTANT, 1, line);
+      emitShort(constant(expr.value, line), line);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+    switch (expr.operator.type) {
+      case MINUS:
+        emit(OpCode.NEGATE, 0, expr.operator.line);
+        break;
+      case BANG:
+        emit(OpCode.NOT, 0, expr.operator.line);
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    int line = expr.operator.line;
+
+    // The separator evaluates both sides and yields nil
+    if (expr.operator.type == TokenType.COMMA) {
+      compile(expr.left);
+      emit(OpCode.POP, -1, line);
+      compile(expr.right);
+      emit(OpCode.POP, -1, line);
+      emit(OpCode.NIL, 1, line);
+      return null;
+    }
+
+    compile(expr.left);
+    compile(expr.right);
+
+    switch (expr.operator.type) {
+      case GREATER:
+        emit(OpCode.GREATER, -1, line);
+        break;
+      case GREATER_EQUAL:
+        emit(OpCode.GREATER_EQUAL, -1, line);
+        break;
+      case LESS:
+        emit(OpCode.LESS, -1, line);
+        break;
+      case LESS_EQUAL:
+        emit(OpCode.LESS_EQUAL, -1, line);
+        break;
+      case EQUAL_EQUAL:
+        emit(OpCode.EQUAL, -1, line);
+        break;
+      case BANG_EQUAL:
+        emit(OpCode.EQUAL, -1, line);
+        emit(OpCode.NOT, 0, line);
+        break;
+      case MINUS:
+        emit(OpCode.SUBTRACT, -1, line);
+        break;
+      case STAR:
+        emit(OpCode.MULTIPLY, -1, line);
+        break;
+      case SLASH:
+        emit(OpCode.DIVIDE, -1, line);
+        break;
+      case PLUS:
+        emit(OpCode.ADD, -1, line);
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitTernaryExpr(Expr.Ternary expr) {
+    compile(expr.condition);
+    int line = lastLine();
+    int elseJump = emitJump(OpCode.JUMP_IF_FALSE, line);
+    emit(OpCode.POP, -1, line);
+    compile(expr.trueExpr);
+    int endJump = emitJump(OpCode.JUMP, line);
+
+    patchJump(elseJump);
+    emit(OpCode.POP, -1, line);
+    compile(expr.falseExpr);
+    patchJump(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    if (expr.access != Access.GLOBAL) {
+      emitGet(expr.name, expr.access, expr.slot);
+    } else {
+      emit(OpCode.GET_GLOBAL, 1, expr.name.line);
+      emitShort(constant(expr, expr.name.line), expr.name.line);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+
+    if (expr.access != Access.GLOBAL) {
+      emit(expr.access == Access.LOCAL ? OpCode.SET_LOCAL
+          : expr.access == Access.BOXED ? OpCode.SET_BOXED : OpCode.SET_UPVALUE, 0, expr.name.line);
+      emitShort(expr.slot, expr.name.line);
+    } else {
+      emit(OpCode.SET_GLOBAL, 0, expr.name.line);
+      emitShort(constant(expr, expr.name.line), expr.name.line);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    int line = expr.operator.line;
+    compile(expr.left);
+
+    // short circuiting
+    if (expr.operator.type == TokenType.OR) {
+      int elseJump = emitJump(OpCode.JUMP_IF_FALSE, line);
+      int endJump = emitJump(OpCode.JUMP, line);
+      patchJump(elseJump);
+      emit(OpCode.POP, -1, line);
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int endJump = emitJump(OpCode.JUMP_IF_FALSE, line);
+      emit(OpCode.POP, -1, line);
+      compile(expr.right);
+      patchJump(endJump);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    call(expr, false);
+    return null;
+  }
+
+  /** Compiles a call, or a tail call that leaves a Lox function to the caller */
+  private void call(Expr.Call expr, boolean tail) {
+    // a call on a property skips binding the method
+    boolean invoke = expr.callee instanceof Expr.Get;
+    if (invoke) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      compile(get.object);
+      emit(OpCode.GET_METHOD, 1, get.name.line);
+      emitShort(constant(PropertyCache.of(get), get.name.line), get.name.line);
+    } else {
+      compile(expr.callee);
+    }
+
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+
+    if (invoke) {
+      emit(tail ? OpCode.TAIL_INVOKE : OpCode.INVOKE, -expr.arguments.size() - 1, expr.paren.line);
+    } else {
+      emit(tail ? OpCode.TAIL_CALL : OpCode.CALL, -expr.arguments.size(), expr.paren.line);
+    }
+    chunk.write((byte) expr.arguments.size(), expr.paren.line);
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    emit(OpCode.GET_PROPERTY, 0, expr.name.line);
+    emitShort(constant(PropertyCache.of(expr), expr.name.line), expr.name.line);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+    emit(OpCode.SET_PROPERTY, -1, expr.name.line);
+    emitShort(constant(PropertyCache.of(expr), expr.name.line), expr.name.line);
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    emitGet(expr.keyword, expr.access, expr.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    int line = expr.method.line;
+    compile(expr.superclass);
+    compile(expr.receiver);
+    emit(OpCode.GET_SUPER, -1, line);
+    emitShort(constant(PropertyCache.of(expr), line), line);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    // the block's locals have their own slots in the current frame
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    emit(Lox.replMode ? OpCode.PRINT : OpCode.POP, -1, lastLine());
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emit(OpCode.PRINT, -1, lastLine());
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    int line = stmt.name.line;
+    emitDeclare(stmt.name, stmt.slot, stmt.captured);
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emit(OpCode.NIL, 1, line);
+    }
+
+    emitDefine(stmt.name, stmt.slot, stmt.captured);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+    int line = lastLine();
+    int elseJump = emitJump(OpCode.JUMP_IF_FALSE, line);
+    emit(OpCode.POP, -1, line);
+    compile(stmt.thenBranch);
+    int endJump = emitJump(OpCode.JUMP, line);
+
+    // The condition is popped on both paths
+    stackDepth++;
+    patchJump(elseJump);
+    emit(OpCode.POP, -1, line);
+    if (stmt.elseBranch != null)
+      compile(stmt.elseBranch);
+    patchJump(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = chunk.count;
+    compile(stmt.condition);
+    int line = lastLine();
+    int exitJump = emitJump(OpCode.JUMP_IF_FALSE, line);
+    emit(OpCode.POP, -1, line);
+
+    loop = new Loop(loop);
+    compile(stmt.body);
+    emitLoop(loopStart, line);
+
+    stackDepth++;
+    patchJump(exitJump);
+    emit(OpCode.POP, -1, line);
+
+    // 'break' jumps land after the condition has been popped
+    for (int breakJump : loop.breakJumps) {
+      patchJump(breakJump);
+    }
+    loop = loop.enclosing;
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    // the Resolver only allows 'break' inside a loop of the same function
+    loop.breakJumps.add(emitJump(OpCode.JUMP, stmt.token.line));
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    int line = stmt.name.line;
+    // a function that calls itself captures its own variable
+    emitDeclare(stmt.name, stmt.slot, stmt.captured);
+    emit(OpCode.CLOSURE, 1, line);
+    emitShort(constant(function(stmt), line), line);
+    emitDefine(stmt.name, stmt.slot, stmt.captured);
+    return null;
+  }
+
+  @Override
+  public Void visitImportStmt(Stmt.Import stmt) {
+    int line = stmt.keyword.line;
+    emit(OpCode.IMPORT, 0, line);
+    emitShort(constant(stmt.module, line), line);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    int line = stmt.keyword.line;
+    if (stmt.tailCall) {
+      call((Expr.Call) stmt.value, true);
+    } else if (stmt.value != null) {
+      compile(stmt.value);
+    } else {
+      emit(OpCode.NIL, 1, line);
+    }
+
+    emit(OpCode.RETURN, -1, line);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    int line = stmt.name.line;
+    int pops = 0;
+    if (stmt.superclass != null) {
+      compile(stmt.superclass);
+      pops = 1;
+    }
+
+    // The method chunks follow the declaration as operands
+    emitDeclare(stmt.name, stmt.slot, stmt.captured);
+    emit(OpCode.CLASS, 1 - pops, line);
+    emitShort(constant(stmt, line), line);
+    for (Stmt.Function method : stmt.methods) {
+      emitShort(constant(function(method), line), line);
+    }
+    emitDefine(stmt.name, stmt.slot, stmt.captured);
+    return null;
+  }
+
+  /** Compiles a function body into a chunk of its own */
+  Chunk function(Stmt.Function declaration) {
+    Compiler compiler = new Compiler(new Chunk(declaration));
+    compiler.compileBody(declaration.body, declaration.name.line);
+    return compiler.chunk;
+  }
+
+  private void compileBody(List<Stmt> statements, int line) {
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+
+    // Falling off the end returns nil
+    emit(OpCode.NIL, 1, lastLine(line));
+    emit(OpCode.RETURN, -1, lastLine(line));
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  /** Emits a read of a resolved local or upvalue */
+  private void emitGet(Token name, byte access, int slot) {
+    emit(access == Access.LOCAL ? OpCode.GET_LOCAL : access == Access.BOXED ? OpCode.GET_BOXED : OpCode.GET_UPVALUE,
+        1, name.line);
+    emitShort(slot, name.line);
+  }
+
+  /** Emits the start of a captured local, which needs its Upvalue before its value */
+  private void emitDeclare(Token name, int slot, boolean captured) {
+    if (slot >= 0 && captured) {
+      emit(OpCode.BOX, 0, name.line);
+      emitShort(slot, name.line);
+    }
+  }
+
+  /** Emits the definition of a declared local, or of a global */
+  private void emitDefine(Token name, int slot, boolean captured) {
+    if (slot >= 0 && captured) {
+      emit(OpCode.SET_BOXED, 0, name.line);
+      emitShort(slot, name.line);
+      emit(OpCode.POP, -1, name.line);
+    } else if (slot >= 0) {
+      emit(OpCode.DEFINE_LOCAL, -1, name.line);
+      emitShort(slot, name.line);
+    } else {
+      emit(OpCode.DEFINE_GLOBAL, -1, name.line);
+      emitShort(constant(name, name.line), name.line);
+    }
+  }
+
+  /**
+   * Writes an opcode and tracks how deep the operand stack gets.
+   *
+   * @param op     opcode to write
+   * @param effect net number of values the instruction pushes
+   * @param line   source line of the instruction
+   */
+  private void emit(byte op, int effect, int line) {
+    chunk.write(op, line);
+    stackDepth += effect;
+    if (stackDepth > chunk.maxStack)
+      chunk.maxStack = stackDepth;
+  }
+
+  private void emitShort(int value, int line) {
+    chunk.write((byte) ((value >> 8) & 0xff), line);
+    chunk.write((byte) (value & 0xff), line);
+  }
+
+  /**
+   * Emits a forward jump with a placeholder offset.
+   *
+   * @return position of the offset, to be patched later
+   */
+  private int emitJump(byte op, int line) {
+    emit(op, 0, line);
+    emitShort(0xffff, line);
+    return chunk.count - 2;
+  }
+
+  /** Points a forward jump at the current end of the code */
+  private void patchJump(int offset) {
+    int jump = chunk.count - offset - 2;
+    if (jump > 0xffff) {
+      Lox.error(chunk.lines[offset], "Too much code to jump over.");
+    }
+
+    chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+    chunk.code[offset + 1] = (byte) (jump & 0xff);
+  }
+
+  private void emitLoop(int loopStart, int line) {
+    emit(OpCode.LOOP, 0, line);
+    int offset = chunk.count - loopStart + 2;
+    if (offset > 0xffff) {
+      Lox.error(line, "Loop body too large.");
+    }
+    emitShort(offset, line);
+  }
+
+  private int constant(Object value, int line) {
+    int index = chunk.addConstant(value);
+    if (index > 0xffff) {
+      Lox.error(line, "Too many constants in one chunk.");
+    }
+    return index;
+  }
+
+  private int lastLine() {
+    return lastLine(0);
+  }
+
+  /** Line of the last emitted instruction, or the given line if there is none */
+  private int lastLine(int line) {
+    return chunk.count > 0 ? chunk.lines[chunk.count - 1] : line;
+  }
+}
@@ -0,0 +1,15 @@
+package com.bloxi.lox;
+
+/**
+ * How a statement finished. Statements return it to the ones around them, so
+ * 'break' and 'return' leave nested blocks without throwing an exception
+ * through them.
+ */
+enum Completion {
+  /** Go on with the next statement */
+  NORMAL,
+  /** Leave the innermost loop */
+  BREAK,
+  /** Leave the function, whose value is in Interpreter.returnValue */
+  RETURN
+}
@@ -0,0 +1,111 @@
+package com.bloxi.lox;
+
+import java.util.List;
+
+/**
+ * Shape of a loop that steps a local by a constant until it passes a limit,
+ * which is what 'for (var i = a; i < b; i = i + c)' desugars to. The loop is
+ * a While testing the local against a literal or a variable, whose body is a
+ * Block ending in the increment. A counter that inner functions capture is
+ * boxed and never matches, so those loops keep running as written, as do
+ * loops typed into the REPL.
+ */
+class CountedLoop {
+  /** Marks a While that has been looked at and is not a counted loop */
+  static final CountedLoop NONE = new CountedLoop(-1, null, null, 0, null, null);
+
+  /** Slot of the counter in the current frame */
+  final int slot;
+  /** Comparison of the counter with the limit */
+  final TokenType test;
+  /** Literal or variable the counter is compared with before every iteration */
+  final Expr limit;
+  /** Added to the counter after every iteration */
+  final double step;
+  /** Body of the loop without the increment */
+  final List<Stmt> body;
+  /** Increment, run as written when the counter is not a number */
+  final Stmt.Expression increment;
+
+  private CountedLoop(int slot, TokenType test, Expr limit, double step, List<Stmt> body,
+      Stmt.Expression increment) {
+    this.slot = slot;
+    this.test = test;
+    this.limit = limit;
+    this.step = step;
+    this.body = body;
+    this.increment = increment;
+  }
+
+  /** Returns the counted loop a While is, recognizing it the first time */
+  static CountedLoop of(Stmt.While stmt) {
+    if (stmt.counted == null)
+      stmt.counted = recognize(stmt);
+    return stmt.counted;
+  }
+
+  /** Whether the loop goes around again */
+  boolean test(double counter, double limit) {
+    switch (test) {
+      case LESS:
+        return counter < limit;
+      case LESS_EQUAL:
+        return counter <= limit;
+      case GREATER:
+        return counter > limit;
+      default:
+        return counter >= limit;
+    }
+  }
+
+  private static CountedLoop recognize(Stmt.While stmt) {
+    // the REPL prints the value of the increment, which stepping the counter would skip
+    if (Lox.replMode)
+      return NONE;
+    if (!(stmt.condition instanceof Expr.Binary) || !(stmt.body instanceof Stmt.Block))
+      return NONE;
+
+    Expr.Binary condition = (Expr.Binary) stmt.condition;
+    TokenType test = condition.operator.type;
+    if (test != TokenType.LESS && test != TokenType.LESS_EQUAL && test != TokenType.GREATER
+        && test != TokenType.GREATER_EQUAL)
+      return NONE;
+
+    int slot = localSlot(condition.left);
+    // the limit is evaluated again when the loop falls back to its condition
+    if (slot < 0 || !(condition.right instanceof Expr.Literal || condition.right instanceof Expr.Variable))
+      return NONE;
+
+    List<Stmt> statements = ((Stmt.Block) stmt.body).statements;
+    if (statements.isEmpty() || !(statements.get(statements.size() - 1) instanceof Stmt.Expression))
+      return NONE;
+
+    // the increment assigns the counter itself plus or minus a number
+    Stmt.Expression increment = (Stmt.Expression) statements.get(statements.size() - 1);
+    if (!(increment.expression instanceof Expr.Assign))
+      return NONE;
+    Expr.Assign assign = (Expr.Assign) increment.expression;
+    if (assign.access != Access.LOCAL || assign.slot != slot || !(assign.value instanceof Expr.Binary))
+      return NONE;
+
+    Expr.Binary value = (Expr.Binary) assign.value;
+    TokenType operator = value.operator.type;
+    if ((operator != TokenType.PLUS && operator != TokenType.MINUS) || localSlot(value.left) != slot
+        || !(value.right instanceof Expr.Literal) || !(((Expr.Literal) value.right).value instanceof Double))
+      return NONE;
+
+    double step = (double) ((Expr.Literal) value.right).value;
+    if (operator == TokenType.MINUS)
+      step = -step;
+
+    return new CountedLoop(slot, test, condition.right, step, statements.subList(0, statements.size() - 1),
+        increment);
+  }
+
+  /** Returns the slot of an unboxed local, or -1 for any other expression */
+  private static int localSlot(Expr expr) {
+    if (expr instanceof Expr.Variable && ((Expr.Variable) expr).access == Access.LOCAL)
+      return ((Expr.Variable) expr).slot;
+    return -1;
+  }
+}
@@ -1,72 +1,162 @@
 package com.bloxi.lox;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+/**
+ * Frame of one function call, or of the top level script. Locals live in an
+ * array at the slot the Resolver gave them, and variables of enclosing
+ * functions are reached through the upvalues the closure captured, so frames
+ * are never chained. Only the global scope looks variables up by name, in a
+ * table indexed by the id of the name's Symbol.
+ */
 class Environment {
-  final Environment enclosing;
-  private final Map<String, Object> values = new HashMap<>();
+  static final Upvalue[] NO_UPVALUES = new Upvalue[0];
+  /** Marks a slot whose value is kept unboxed in numbers */
+  static final Object NUMBER = new Object();
 
+  /** Local variables by slot, or null in the global scope */
+  final Object[] slots;
+  /** Variables captured by the running closure */
+  final Upvalue[] upvalues;
+  /** Unboxed values of the slots marked NUMBER, made on the first such store */
+  private double[] numbers;
+  /** Cells of the global variables by symbol id, or null in a frame */
+  private Global[] cells;
+
+  /** Creates the global scope */
   Environment() {
-    enclosing = null;
+    slots = null;
+    upvalues = null;
+    cells = new Global[64];
   }
 
-  Environment(Environment enclosing) {
-    this.enclosing = enclosing;
+  /** Creates a frame with the given number of slots */
+  Environment(int size, Upvalue[] upvalues) {
+    this.slots = new Object[size];
+    this.upvalues = upvalues;
+    this.cells = null;
   }
 
-  /** Adds a new variable to the environment */
-  void define(String name, Object value) {
-    values.put(name, value);
-  }
+  /** Returns the cell of a global variable, creating one for a new name */
+  Global cell(Symbol name) {
+    if (name.id >= cells.length)
+      cells = Arrays.copyOf(cells, Math.max(cells.length * 2, name.id + 1));
 
-  /** Returns a variable from the environment */
-  Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
+    Global cell = cells[name.id];
+    if (cell == null) {
+      cell = new Global(name);
+      // natives are made the first time their name is used
+      cell.value = Natives.lookup(name);
+      cells[name.id] = cell;
     }
+    return cell;
+  }
+
+  /** Adds a new variable to the global scope */
+  void define(Symbol name, Object value) {
+    cell(name).value = value;
+  }
 
-    // If this isn't the global scope, checking parent scope for var
-    if (enclosing != null)
-      return enclosing.get(name);
+  /** Returns the cells of the global variables that have been defined */
+  List<Global> defined() {
+    List<Global> defined = new ArrayList<>();
+    for (Global cell : cells) {
+      if (cell != null && cell.value != Global.UNDEFINED)
+        defined.add(cell);
+    }
+    return defined;
+  }
 
-    throw new RuntimeError(name, String.format("Undefined variable '%s'.", name.lexeme));
+  /** Returns a variable from the global scope */
+  Object get(Token name) {
+    return cell(name.symbol).get(name);
   }
 
-  /** Assigns a value to an existing variable */
+  /** Assigns a value to an existing global variable */
   void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-      return;
+    cell(name.symbol).assign(name, value);
+  }
+
+  /**
+   * Starts a variable declared in a slot. One that inner functions capture
+   * gets a new Upvalue every time its declaration runs, so closures made in
+   * different iterations of a loop see different variables.
+   */
+  void declare(int slot, boolean captured) {
+    if (captured)
+      slots[slot] = new Upvalue(null);
+  }
+
+  /** Gives a variable declared in a slot its value */
+  void define(int slot, boolean captured, Object value) {
+    if (captured) {
+      ((Upvalue) slots[slot]).value = value;
+    } else {
+      slots[slot] = value;
     }
+  }
 
-    // If variable is not defined in the current scope,
-    // delegate assignment to the parent scope
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-      return;
+  /** Reads a local or an upvalue, as given by a resolved Access */
+  Object get(byte access, int slot) {
+    switch (access) {
+      case Access.LOCAL:
+        Object value = slots[slot];
+        return value == NUMBER ? (Object) numbers[slot] : value;
+      case Access.BOXED:
+        return ((Upvalue) slots[slot]).value;
+      default:
+        return upvalues[slot].value;
     }
+  }
 
-    throw new RuntimeError(name, String.format("Assigning to undefined variable: %s", name.lexeme));
+  /** Assigns a local or an upvalue, as given by a resolved Access */
+  void set(byte access, int slot, Object value) {
+    switch (access) {
+      case Access.LOCAL:
+        slots[slot] = value;
+        break;
+      case Access.BOXED:
+        ((Upvalue) slots[slot]).value = value;
+        break;
+      default:
+        upvalues[slot].value = value;
+    }
   }
 
-  /** Get a variable from nth ancestor of environment */
-  Object getAt(int distance, String name) {
-    return ancestor(distance).values.get(name);
+  /**
+   * Reads a local expected to hold a number, without boxing it.
+   *
+   * @throws UnexpectedResult when the local holds something else
+   */
+  double number(int slot) {
+    Object value = slots[slot];
+    if (value == NUMBER)
+      return numbers[slot];
+    if (value instanceof Double)
+      return (double) value;
+    throw new UnexpectedResult(value);
   }
 
-  /** Change a variable in the nth ancestor of environment */
-  void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
+  /** Stores a number in a local without boxing it */
+  void setNumber(int slot, double value) {
+    if (numbers == null)
+      numbers = new double[slots.length];
+    numbers[slot] = value;
+    slots[slot] = NUMBER;
   }
 
-  /** Get the nth ancestor of enviroment */
-  Environment ancestor(int distance) {
-    Environment environment = this;
-    for (int i = 0; i < distance; i++) {
-      environment = environment.enclosing;
+  /**
+   * Boxes the numbers kept unboxed, before the frame is handed to an engine
+   * that reads the slots directly.
+   */
+  void boxNumbers() {
+    if (numbers == null)
+      return;
+    for (int slot = 0; slot < slots.length; slot++) {
+      if (slots[slot] == NUMBER)
+        slots[slot] = numbers[slot];
     }
-    return environment;
   }
-
 }
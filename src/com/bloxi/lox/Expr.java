@@ -37,6 +37,8 @@ abstract class Expr {
   static class Unary extends Expr {
     final Token operator;
     final Expr right;
+    // runtime state, not part of the tree
+    byte specialization;
 
     Unary(Token operator, Expr right) {
       this.operator = operator;
@@ -53,6 +55,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    // runtime state, not part of the tree
+    byte specialization;
 
     Binary(Expr left, Token operator, Expr right) {
       this.left = left;
@@ -98,6 +102,10 @@ abstract class Expr {
 
   static class Variable extends Expr {
     final Token name;
+    // runtime state, not part of the tree
+    byte access;
+    int slot;
+    Global global;
 
     Variable(Token name) {
       this.name = name;
@@ -112,6 +120,10 @@ abstract class Expr {
   static class Assign extends Expr {
     final Token name;
     final Expr value;
+    // runtime state, not part of the tree
+    byte access;
+    int slot;
+    Global global;
 
     Assign(Token name, Expr value) {
       this.name = name;
@@ -128,6 +140,8 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    // runtime state, not part of the tree
+    byte specialization;
 
     Logical(Expr left, Token operator, Expr right) {
       this.left = left;
@@ -161,6 +175,8 @@ abstract class Expr {
   static class Get extends Expr {
     final Expr object;
     final Token name;
+    // runtime state, not part of the tree
+    PropertyCache cache;
 
     Get(Expr object, Token name) {
       this.object = object;
@@ -177,6 +193,8 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+    // runtime state, not part of the tree
+    PropertyCache cache;
 
     Set(Expr object, Token name, Expr value) {
       this.object = object;
@@ -192,6 +210,9 @@ abstract class Expr {
 
   static class This extends Expr {
     final Token keyword;
+    // runtime state, not part of the tree
+    byte access;
+    int slot;
 
     This(Token keyword) {
       this.keyword = keyword;
@@ -206,6 +227,10 @@ abstract class Expr {
   static class Super extends Expr {
     final Token keyword;
     final Token method;
+    // runtime state, not part of the tree
+    PropertyCache cache;
+    Expr.Variable superclass;
+    Expr.This receiver;
 
     Super(Token keyword, Token method) {
       this.keyword = keyword;
@@ -0,0 +1,46 @@
+package com.bloxi.lox;
+
+/**
+ * Cell holding one global variable. The global scope keeps a cell per name,
+ * created the first time the name is defined or used, and every Variable and
+ * Assign node that refers to a global links to its cell the first time it
+ * runs. After that, reading the global is a field load instead of a lookup by
+ * name.
+ */
+class Global {
+  /** Value of a cell whose variable has been used but not defined yet */
+  static final Object UNDEFINED = new Object();
+
+  final Symbol name;
+  Object value = UNDEFINED;
+
+  Global(Symbol name) {
+    this.name = name;
+  }
+
+  /** Returns the cell a global read refers to, linking the node to it */
+  static Global of(Environment globals, Expr.Variable expr) {
+    if (expr.global == null)
+      expr.global = globals.cell(expr.name.symbol);
+    return expr.global;
+  }
+
+  /** Returns the cell a global assignment refers to, linking the node to it */
+  static Global of(Environment globals, Expr.Assign expr) {
+    if (expr.global == null)
+      expr.global = globals.cell(expr.name.symbol);
+    return expr.global;
+  }
+
+  Object get(Token name) {
+    if (value == UNDEFINED)
+      throw new RuntimeError(name, String.format("Undefined variable '%s'.", name.lexeme));
+    return value;
+  }
+
+  void assign(Token name, Object value) {
+    if (this.value == UNDEFINED)
+      throw new RuntimeError(name, String.format("Assigning to undefined variable: %s", name.lexeme));
+    this.value = value;
+  }
+}
@@ -5,33 +5,25 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
   final Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
-  private boolean breakFlag = false;
-
-  Interpreter() {
-    // a native function
-    globals.define("clock", new LoxCallable() {
-      @Override
-      public int arity() {
-        return 0;
-      }
-
-      @Override
-      public Object call(Interpreter interpreter, List<Object> arguments) {
-        return (double) System.currentTimeMillis() / 1000.0;
-      }
-
-      @Override
-      public String toString() {
-        return "<native fn>";
-      }
-    });
-  }
+  /** Frame of the running function, or of the script */
+  private Environment environment;
+  /** Value of the 'return' a body last completed with */
+  Object returnValue = null;
+  private VM vm = null;
+  /** Compiles function bodies to JVM classes when set */
+  private JvmCompiler jvmCompiler = null;
+  /** Promotes hot functions and loops out of the tree-walker when set */
+  private Tiering tiering = null;
 
-  void interpret(List<Stmt> statements) {
+  /**
+   * Runs a top level script.
+   *
+   * @param slotCount number of slots the Resolver gave the script's frame
+   */
+  void interpret(List<Stmt> statements, int slotCount) {
+    environment = new Environment(slotCount, Environment.NO_UPVALUES);
     try {
       for (Stmt statement : statements) {
         execute(statement);
@@ -48,8 +40,44 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
+    if (expr.specialization == Specialization.NEGATE_NUMBER) {
+      try {
+        return negate(expr);
+      } catch (UnexpectedResult result) {
+        return result.value;
+      }
+    }
+
     Object rhs = evaluate(expr.right);
 
+    switch (expr.specialization) {
+      case Specialization.NOT_BOOLEAN:
+        if (rhs instanceof Boolean)
+          return !(boolean) rhs;
+        break;
+      case Specialization.GENERIC:
+        return unary(expr, rhs);
+      case Specialization.UNINITIALIZED:
+        expr.specialization = Specialization.unary(expr.operator.type, rhs);
+        return unary(expr, rhs);
+    }
+
+    // the guard failed, so this node stays generic
+    expr.specialization = Specialization.GENERIC;
+    return unary(expr, rhs);
+  }
+
+  /** Runs a '-' specialized for numbers, keeping the result unboxed */
+  private double negate(Expr.Unary expr) {
+    try {
+      return -evaluateNumber(expr.right);
+    } catch (UnexpectedResult result) {
+      expr.specialization = Specialization.GENERIC;
+      return number(unary(expr, result.value));
+    }
+  }
+
+  private Object unary(Expr.Unary expr, Object rhs) {
     switch (expr.operator.type) {
       case MINUS:
         checkNumberOperand(expr.operator, rhs);
@@ -64,9 +92,172 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
+    // the variant this node rewrote itself to skips the generic type checks
+    switch (expr.specialization) {
+      case Specialization.ADD_NUMBERS:
+      case Specialization.SUBTRACT_NUMBERS:
+      case Specialization.MULTIPLY_NUMBERS:
+      case Specialization.DIVIDE_NUMBERS:
+        // only the result of the whole arithmetic tree gets boxed
+        try {
+          return arithmetic(expr);
+        } catch (UnexpectedResult result) {
+          return result.value;
+        }
+      case Specialization.GREATER_NUMBERS:
+      case Specialization.GREATER_EQUAL_NUMBERS:
+      case Specialization.LESS_NUMBERS:
+      case Specialization.LESS_EQUAL_NUMBERS:
+        return compare(expr);
+    }
+
     Object lhs = evaluate(expr.left);
     Object rhs = evaluate(expr.right);
 
+    switch (expr.specialization) {
+      case Specialization.ADD_STRINGS:
+        if (isString(lhs) && isString(rhs))
+          return Rope.concat(lhs, rhs);
+        break;
+      case Specialization.GENERIC:
+        return binary(expr, lhs, rhs);
+      case Specialization.UNINITIALIZED:
+        expr.specialization = Specialization.binary(expr.operator.type, lhs, rhs);
+        return binary(expr, lhs, rhs);
+    }
+
+    // the guard failed, so this node stays generic
+    expr.specialization = Specialization.GENERIC;
+    return binary(expr, lhs, rhs);
+  }
+
+  /** Runs an arithmetic operator specialized for numbers, keeping the result unboxed */
+  private double arithmetic(Expr.Binary expr) {
+    double lhs;
+    try {
+      lhs = evaluateNumber(expr.left);
+    } catch (UnexpectedResult result) {
+      return number(despecialize(expr, result.value, evaluate(expr.right)));
+    }
+
+    double rhs;
+    try {
+      rhs = evaluateNumber(expr.right);
+    } catch (UnexpectedResult result) {
+      return number(despecialize(expr, lhs, result.value));
+    }
+
+    switch (expr.specialization) {
+      case Specialization.ADD_NUMBERS:
+        return lhs + rhs;
+      case Specialization.SUBTRACT_NUMBERS:
+        return lhs - rhs;
+      case Specialization.MULTIPLY_NUMBERS:
+        return lhs * rhs;
+      default:
+        if (rhs == 0)
+          return number(binary(expr, lhs, rhs));
+        return lhs / rhs;
+    }
+  }
+
+  /** Runs a comparison specialized for numbers on unboxed operands */
+  private Object compare(Expr.Binary expr) {
+    double lhs;
+    try {
+      lhs = evaluateNumber(expr.left);
+    } catch (UnexpectedResult result) {
+      return despecialize(expr, result.value, evaluate(expr.right));
+    }
+
+    double rhs;
+    try {
+      rhs = evaluateNumber(expr.right);
+    } catch (UnexpectedResult result) {
+      return despecialize(expr, lhs, result.value);
+    }
+
+    switch (expr.specialization) {
+      case Specialization.GREATER_NUMBERS:
+        return lhs > rhs;
+      case Specialization.GREATER_EQUAL_NUMBERS:
+        return lhs >= rhs;
+      case Specialization.LESS_NUMBERS:
+        return lhs < rhs;
+      default:
+        return lhs <= rhs;
+    }
+  }
+
+  /** Finishes a node whose operand was not a number after all, and leaves it generic */
+  private Object despecialize(Expr.Binary expr, Object lhs, Object rhs) {
+    expr.specialization = Specialization.GENERIC;
+    return binary(expr, lhs, rhs);
+  }
+
+  /**
+   * Evaluates an expression whose value feeds a number-specialized node.
+   * Arithmetic and the locals it stores to are followed without boxing the
+   * intermediate numbers; anything else is evaluated as usual and unboxed.
+   *
+   * @throws UnexpectedResult when the value is not a number
+   */
+  private double evaluateNumber(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      if (Specialization.isArithmetic(binary.specialization))
+        return arithmetic(binary);
+    } else if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable) expr;
+      if (variable.access == Access.LOCAL)
+        return environment.number(variable.slot);
+    } else if (expr instanceof Expr.Literal) {
+      return number(((Expr.Literal) expr).value);
+    } else if (expr instanceof Expr.Grouping) {
+      return evaluateNumber(((Expr.Grouping) expr).expression);
+    } else if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      if (unary.specialization == Specialization.NEGATE_NUMBER)
+        return negate(unary);
+    }
+    return number(evaluate(expr));
+  }
+
+  /** Whether an expression is arithmetic the unboxed number path can run */
+  private static boolean isArithmetic(Expr expr) {
+    if (expr instanceof Expr.Binary)
+      return Specialization.isArithmetic(((Expr.Binary) expr).specialization);
+    if (expr instanceof Expr.Unary)
+      return ((Expr.Unary) expr).specialization == Specialization.NEGATE_NUMBER;
+    if (expr instanceof Expr.Grouping)
+      return isArithmetic(((Expr.Grouping) expr).expression);
+    return false;
+  }
+
+  private static double number(Object value) {
+    if (value instanceof Double)
+      return (double) value;
+    throw new UnexpectedResult(value);
+  }
+
+  /**
+   * Stores the result of arithmetic in a local without boxing it.
+   *
+   * @return false when the value has to be evaluated and stored as usual
+   */
+  private boolean storeNumber(int slot, Expr value) {
+    if (!isArithmetic(value))
+      return false;
+
+    try {
+      environment.setNumber(slot, evaluateNumber(value));
+    } catch (UnexpectedResult result) {
+      environment.slots[slot] = result.value;
+    }
+    return true;
+  }
+
+  private Object binary(Expr.Binary expr, Object lhs, Object rhs) {
     switch (expr.operator.type) {
       case GREATER:
         checkNumberOperands(expr.operator, lhs, rhs);
@@ -99,12 +290,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       case PLUS:
         if (lhs instanceof Double && rhs instanceof Double)
           return (double) lhs + (double) rhs;
-        if (lhs instanceof String && rhs instanceof String) {
-          return (String) lhs + (String) rhs;
-        }
         // if either side is string
-        if (lhs instanceof String || rhs instanceof String) {
-          return stringify(lhs) + stringify(rhs);
+        if (isString(lhs) || isString(rhs)) {
+          return Rope.concat(lhs, rhs);
         }
 
         throw new RuntimeError(expr.operator, "At least one of the operands must be a string.");
@@ -130,30 +318,38 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   @Override
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
+  public Completion visitExpressionStmt(Stmt.Expression stmt) {
+    // nothing reads the value of an assignment statement, so it can stay unboxed
+    if (!Lox.replMode && stmt.expression instanceof Expr.Assign) {
+      Expr.Assign assign = (Expr.Assign) stmt.expression;
+      if (assign.access == Access.LOCAL && storeNumber(assign.slot, assign.value))
+        return Completion.NORMAL;
+    }
+
     Object value = evaluate(stmt.expression);
 
     if (Lox.replMode) {
       System.out.println(stringify(value));
     }
 
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return lookUpVariable(expr.name, expr);
+    if (expr.access == Access.GLOBAL)
+      return Global.of(globals, expr).get(expr.name);
+    return environment.get(expr.access, expr.slot);
   }
 
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
     Object value = evaluate(expr.value);
 
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      environment.assignAt(distance, expr.name, value);
+    if (expr.access == Access.GLOBAL) {
+      Global.of(globals, expr).assign(expr.name, value);
     } else {
-      globals.assign(expr.name, value);
+      environment.set(expr.access, expr.slot, value);
     }
 
     // Assign statement returns the assigned value.
@@ -165,6 +361,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   public Object visitLogicalExpr(Expr.Logical expr) {
     Object lhs = evaluate(expr.left);
 
+    if (expr.specialization == Specialization.LOGICAL_BOOLEAN) {
+      if (lhs instanceof Boolean) {
+        if ((boolean) lhs == (expr.operator.type == TokenType.OR))
+          return lhs;
+        return evaluate(expr.right);
+      }
+      expr.specialization = Specialization.GENERIC;
+    } else if (expr.specialization == Specialization.UNINITIALIZED) {
+      expr.specialization = Specialization.logical(lhs);
+    }
+
     // short circuiting
     if (expr.operator.type == TokenType.OR) {
       if (isTruthy(lhs))
@@ -179,6 +386,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitCallExpr(Expr.Call expr) {
+    return call(expr, false);
+  }
+
+  /**
+   * Makes a call. One in tail position returns a call to a Lox function as a
+   * TailCall instead, for the LoxFunction.call running this body to make.
+   */
+  private Object call(Expr.Call expr, boolean tail) {
+    // a call on a property skips binding the method
+    if (expr.callee instanceof Expr.Get)
+      return invoke(expr, (Expr.Get) expr.callee, tail);
+
     Object callee = evaluate(expr.callee);
 
     List<Object> arguments = new ArrayList<>();
@@ -191,21 +410,45 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     LoxCallable function = (LoxCallable) callee;
-    if (arguments.size() != function.arity()) {
-      String errorMsg = String.format("Expected %d arguments but got %d.", function.arity(), arguments.size());
-      throw new RuntimeError(expr.paren, errorMsg);
+    checkArity(function, arguments.size(), expr.paren);
+
+    if (tail && function instanceof LoxFunction)
+      return new TailCall((LoxFunction) function, null, arguments);
+    return function.call(this, arguments);
+  }
+
+  private Object invoke(Expr.Call expr, Expr.Get get, boolean tail) {
+    Object object = evaluate(get.object);
+    PropertyCache cache = PropertyCache.of(get);
+    LoxFunction method = cache.method(object);
+    Object callee = method == null ? cache.get(object) : null;
+
+    List<Object> arguments = new ArrayList<>();
+    for (Expr argument : expr.arguments) {
+      arguments.add(evaluate(argument));
+    }
+
+    if (method == null && !(callee instanceof LoxCallable)) {
+      throw new RuntimeError(expr.paren, "Can only call functions and classes.");
     }
+
+    LoxCallable function = method != null ? method : (LoxCallable) callee;
+    checkArity(function, arguments.size(), expr.paren);
+
+    if (method != null) {
+      if (tail)
+        return new TailCall(method, (LoxInstance) object, arguments);
+      return method.invoke(this, (LoxInstance) object, arguments);
+    }
+    if (tail && function instanceof LoxFunction)
+      return new TailCall((LoxFunction) function, null, arguments);
     return function.call(this, arguments);
   }
 
   @Override
   public Object visitGetExpr(Expr.Get expr) {
     Object object = evaluate(expr.object);
-    if (object instanceof LoxInstance) {
-      return ((LoxInstance) object).get(expr.name);
-    }
-
-    throw new RuntimeError(expr.name, "Only instances have properties.");
+    return PropertyCache.of(expr).get(object);
   }
 
   @Override
@@ -216,104 +459,172 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       throw new RuntimeError(expr.name, "Only instances have fields.");
 
     Object value = evaluate(expr.value);
-    ((LoxInstance) object).set(expr.name, value);
+    PropertyCache.of(expr).set((LoxInstance) object, value);
     return value;
   }
 
   @Override
   public Object visitThisExpr(Expr.This expr) {
-    return lookUpVariable(expr.keyword, expr);
+    return environment.get(expr.access, expr.slot);
   }
 
   @Override
   public Object visitSuperExpr(Expr.Super expr) {
-    int distance = locals.get(expr);
-    LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-    LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
+    LoxClass superclass = (LoxClass) evaluate(expr.superclass);
+    LoxInstance object = (LoxInstance) evaluate(expr.receiver);
 
-    LoxFunction method = superclass.findMethod(expr.method.lexeme);
-
-    if (method == null) {
-      String errorMsg = String.format("Undefined property '%s'.", expr.method.lexeme);
-      throw new RuntimeError(expr.method, errorMsg);
-    }
-
-    return method.bind(object);
+    return PropertyCache.of(expr).getSuper(superclass, object);
   }
 
   @Override
-  public Void visitPrintStmt(Stmt.Print stmt) {
+  public Completion visitPrintStmt(Stmt.Print stmt) {
     Object value = evaluate(stmt.expression);
     System.out.println(stringify(value));
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitVarStmt(Stmt.Var stmt) {
+  public Completion visitVarStmt(Stmt.Var stmt) {
+    if (stmt.slot >= 0 && !stmt.captured && stmt.initializer != null && storeNumber(stmt.slot, stmt.initializer))
+      return Completion.NORMAL;
+
     Object value = null;
     if (stmt.initializer != null) {
       value = evaluate(stmt.initializer);
     }
 
-    environment.define(stmt.name.lexeme, value);
-    return null;
+    declare(stmt.slot, stmt.captured);
+    define(stmt.name, stmt.slot, stmt.captured, value);
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
-    return null;
+  public Completion visitBlockStmt(Stmt.Block stmt) {
+    // the block's locals have their own slots in the current frame
+    for (Stmt statement : stmt.statements) {
+      Completion completion = execute(statement);
+      if (completion != Completion.NORMAL)
+        return completion;
+    }
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitIfStmt(Stmt.If stmt) {
-    if (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.thenBranch);
-    } else if (stmt.elseBranch != null) {
-      execute(stmt.elseBranch);
-    }
-    return null;
+  public Completion visitIfStmt(Stmt.If stmt) {
+    if (isTruthy(evaluate(stmt.condition)))
+      return execute(stmt.thenBranch);
+    if (stmt.elseBranch != null)
+      return execute(stmt.elseBranch);
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitWhileStmt(Stmt.While stmt) {
+  public Completion visitWhileStmt(Stmt.While stmt) {
+    Tiering.LoopTier tier = tiering == null ? null : tiering.loop(stmt);
+    if (tier != null && tier.isPromoted())
+      return tier.run(environment);
+
+    CountedLoop counted = CountedLoop.of(stmt);
+    if (counted != CountedLoop.NONE)
+      return countedLoop(stmt, counted, tier);
+    return loop(stmt, tier);
+  }
+
+  /** Runs a loop as written, from its condition */
+  private Completion loop(Stmt.While stmt, Tiering.LoopTier tier) {
     while (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.body);
-      if (breakFlag) {
-        breakFlag = false;
+      Completion completion = execute(stmt.body);
+      if (completion == Completion.BREAK)
         break;
+      if (completion == Completion.RETURN)
+        return completion;
+      // a hot loop carries on from its condition in the promoted tier
+      if (tier != null && tier.backEdge())
+        return tier.run(environment);
+    }
+    return Completion.NORMAL;
+  }
+
+  /**
+   * Runs a counted loop with its counter unboxed in the frame, testing and
+   * stepping it directly. When the counter or the limit turns out not to be a
+   * number, the loop stops being counted and carries on as written.
+   */
+  private Completion countedLoop(Stmt.While stmt, CountedLoop counted, Tiering.LoopTier tier) {
+    while (true) {
+      double counter;
+      double limit;
+      try {
+        counter = environment.number(counted.slot);
+        limit = evaluateNumber(counted.limit);
+      } catch (UnexpectedResult result) {
+        stmt.counted = CountedLoop.NONE;
+        return loop(stmt, tier);
+      }
+      if (!counted.test(counter, limit))
+        return Completion.NORMAL;
+
+      for (Stmt statement : counted.body) {
+        Completion completion = execute(statement);
+        if (completion == Completion.BREAK)
+          return Completion.NORMAL;
+        if (completion == Completion.RETURN)
+          return completion;
       }
+
+      // the body may have assigned the counter
+      try {
+        environment.setNumber(counted.slot, environment.number(counted.slot) + counted.step);
+      } catch (UnexpectedResult result) {
+        stmt.counted = CountedLoop.NONE;
+        execute(counted.increment);
+        return loop(stmt, tier);
+      }
+
+      if (tier != null && tier.backEdge())
+        return tier.run(environment);
     }
-    return null;
   }
 
   @Override
-  public Void visitBreakStmt(Stmt.Break stmt) {
-    breakFlag = true;
-    return null;
+  public Completion visitBreakStmt(Stmt.Break stmt) {
+    return Completion.BREAK;
   }
 
   @Override
-  public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt, environment, false);
-    environment.define(stmt.name.lexeme, function);
-    return null;
+  public Completion visitFunctionStmt(Stmt.Function stmt) {
+    // a function that calls itself captures its own variable
+    declare(stmt.slot, stmt.captured);
+    LoxFunction function = new LoxFunction(stmt, Upvalue.capture(stmt, environment), false, compiledBody(stmt));
+    define(stmt.name, stmt.slot, stmt.captured, function);
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitReturnStmt(Stmt.Return stmt) {
+  public Completion visitImportStmt(Stmt.Import stmt) {
+    Module module = stmt.module;
+    if (module.start())
+      executeBody(module.statements, new Environment(module.slotCount, Environment.NO_UPVALUES));
+    return Completion.NORMAL;
+  }
+
+  @Override
+  public Completion visitReturnStmt(Stmt.Return stmt) {
     Object value = null;
-    if (stmt.value != null)
+    if (stmt.tailCall) {
+      value = call((Expr.Call) stmt.value, true);
+    } else if (stmt.value != null) {
       value = evaluate(stmt.value);
+    }
 
     // Return statement in a function can be nested inside blocks, loops,
-    // or conditionals. To break out of all these on return, we are throwing
-    // an exception.
-    throw new Return(value);
+    // or conditionals. All of them pass the completion on, up to the body.
+    returnValue = value;
+    return Completion.RETURN;
   }
 
   @Override
-  public Void visitClassStmt(Stmt.Class stmt) {
+  public Completion visitClassStmt(Stmt.Class stmt) {
     Object superclass = null;
     if (stmt.superclass != null) {
       superclass = evaluate(stmt.superclass);
@@ -322,34 +633,30 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       }
     }
 
-    environment.define(stmt.name.lexeme, null);
+    declare(stmt.slot, stmt.captured);
 
-    if (stmt.superclass != null) {
-      environment = new Environment(environment);
-      environment.define("super", superclass);
-    }
+    if (stmt.superclass != null)
+      environment.slots[stmt.superSlot] = new Upvalue(superclass);
 
-    Map<String, LoxFunction> methods = new HashMap<>();
+    Map<Symbol, LoxFunction> methods = new HashMap<>();
     for (Stmt.Function method : stmt.methods) {
-      LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-      methods.put(method.name.lexeme, function);
+      boolean isInitializer = method.name.symbol == Symbol.INIT;
+      LoxFunction function = new LoxFunction(method, Upvalue.capture(method, environment), isInitializer,
+          compiledBody(method));
+      methods.put(method.name.symbol, function);
     }
 
     LoxClass loxClass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
-
-    if (superclass != null)
-      environment = environment.enclosing;
-
-    environment.assign(stmt.name, loxClass);
-    return null;
+    define(stmt.name, stmt.slot, stmt.captured, loxClass);
+    return Completion.NORMAL;
   }
 
   private Object evaluate(Expr expr) {
     return expr.accept(this);
   }
 
-  private void execute(Stmt stmt) {
-    stmt.accept(this);
+  private Completion execute(Stmt stmt) {
+    return stmt.accept(this);
   }
 
   /**
@@ -358,7 +665,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
    * @param object object to determine truthiness
    * @return true if truthy
    */
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null)
       return false;
     if (object instanceof Boolean)
@@ -366,30 +673,50 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return true;
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     if (a == null && b == null)
       return true;
     if (a == null)
       return false;
+    // a string never equals a rope, though the rope equals it
+    if (b instanceof Rope)
+      return b.equals(a);
 
     return a.equals(b);
   }
 
-  private void checkNumberOperand(Token operator, Object operand) {
+  /** Strings are Java Strings, or Ropes made by '+' */
+  static boolean isString(Object object) {
+    return object instanceof String || object instanceof Rope;
+  }
+
+  static void checkNumberOperand(Token operator, Object operand) {
     if (operand instanceof Double)
       return;
 
     throw new RuntimeError(operator, "Operand must be a number.");
   }
 
-  private void checkNumberOperands(Token operator, Object lhs, Object rhs) {
+  static void checkNumberOperands(Token operator, Object lhs, Object rhs) {
     if (lhs instanceof Double && rhs instanceof Double)
       return;
 
     throw new RuntimeError(operator, "Operands must be numbers.");
   }
 
-  private String stringify(Object object) {
+  static void checkArity(LoxCallable callee, int argCount, Token paren) {
+    if (argCount == callee.arity())
+      return;
+
+    throw new RuntimeError(paren, arityMessage(callee, argCount));
+  }
+
+  /** Message of the error for a call with the wrong number of arguments */
+  static String arityMessage(LoxCallable callee, int argCount) {
+    return String.format("Expected %d arguments but got %d.", callee.arity(), argCount);
+  }
+
+  static String stringify(Object object) {
     if (object == null)
       return "nil";
 
@@ -411,30 +738,71 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
    * @param statements
    * @param environment
    */
-  void executeBlock(List<Stmt> statements, Environment environment) {
+  private Completion executeBlock(List<Stmt> statements, Environment environment) {
     Environment previous = this.environment;
 
     try {
       this.environment = environment;
       for (Stmt statement : statements) {
-        execute(statement);
+        Completion completion = execute(statement);
+        if (completion != Completion.NORMAL)
+          return completion;
       }
+      return Completion.NORMAL;
     } finally {
       this.environment = previous;
     }
   }
 
-  /** Stores variable resolution information */
-  void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  /**
+   * Walks a function body in its frame.
+   *
+   * @return the value of the 'return' it completed with, or nil
+   */
+  Object executeBody(List<Stmt> body, Environment environment) {
+    if (executeBlock(body, environment) == Completion.RETURN)
+      return returnValue;
+    return null;
+  }
+
+  /** Returns the bytecode VM that shares this interpreter's globals */
+  VM vm() {
+    if (vm == null)
+      vm = new VM(this);
+    return vm;
+  }
+
+  /** Compiles function bodies to JVM classes from now on */
+  void useJvmCompiler() {
+    jvmCompiler = new JvmCompiler();
+  }
+
+  /** Counts calls and loop iterations, and promotes hot code from now on */
+  void useTiering(int callThreshold, int loopThreshold, boolean log) {
+    tiering = new Tiering(this, callThreshold, loopThreshold, log);
+  }
+
+  /** Returns the compiled body of a function, or null to walk its tree */
+  LoxFunction.Body compiledBody(Stmt.Function declaration) {
+    if (tiering != null)
+      return tiering.function(declaration);
+    if (jvmCompiler == null)
+      return null;
+    return jvmCompiler.compile(declaration);
+  }
+
+  /** Starts a declared local variable; globals need no declaring */
+  private void declare(int slot, boolean captured) {
+    if (slot >= 0)
+      environment.declare(slot, captured);
   }
 
-  private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      return environment.getAt(distance, name.lexeme);
+  /** Defines a declared variable in its slot, or by name when it is a global */
+  private void define(Token name, int slot, boolean captured, Object value) {
+    if (slot >= 0) {
+      environment.define(slot, captured, value);
     } else {
-      return globals.get(name);
+      globals.define(name.symbol, value);
     }
   }
 }
@@ -0,0 +1,588 @@
+package com.bloxi.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles function bodies into JVM classes so the JIT can optimize them like
+ * Java code. Each body becomes a hidden class implementing LoxFunction.Body.
+ *
+ * The slots of the function's frame live in JVM local variables, so functions
+ * that declare functions or classes (which could capture those locals) are
+ * not compiled and keep running on the tree-walker. Upvalues and globals are
+ * read as the other engines read them.
+ */
+class JvmCompiler {
+  private static final String OBJECT = "java/lang/Object";
+  private static final String BODY = "com/bloxi/lox/LoxFunction$Body";
+  private static final String RUNTIME = "com/bloxi/lox/JvmRuntime";
+  private static final String ENVIRONMENT = "com/bloxi/lox/Environment";
+  private static final String TOKEN = "com/bloxi/lox/Token";
+  private static final String CACHE = "com/bloxi/lox/PropertyCache";
+  private static final String VARIABLE = "com/bloxi/lox/Expr$Variable";
+  private static final String ASSIGN = "com/bloxi/lox/Expr$Assign";
+
+  private static final String OBJECT_DESC = "Ljava/lang/Object;";
+  private static final String TOKEN_DESC = "Lcom/bloxi/lox/Token;";
+  private static final String CACHE_DESC = "Lcom/bloxi/lox/PropertyCache;";
+  private static final String VARIABLE_DESC = "L" + VARIABLE + ";";
+  private static final String ASSIGN_DESC = "L" + ASSIGN + ";";
+  private static final String ENVIRONMENT_DESC = "Lcom/bloxi/lox/Environment;";
+  private static final String INTERPRETER_DESC = "Lcom/bloxi/lox/Interpreter;";
+  private static final String BINARY_DESC = "(" + OBJECT_DESC + OBJECT_DESC + TOKEN_DESC + ")" + OBJECT_DESC;
+  private static final String COMPARE_DESC = "(" + OBJECT_DESC + OBJECT_DESC + ")" + OBJECT_DESC;
+
+  // local variable slots of the generated run method
+  private static final int THIS_SLOT = 0;
+  private static final int INTERPRETER_SLOT = 1;
+  private static final int ENVIRONMENT_SLOT = 2;
+  private static final int FIRST_LOCAL = 3;
+
+  /** Longest body that short jump offsets can cover */
+  private static final int MAX_CODE = 32767;
+  /** Locals have to be addressable without the 'wide' prefix */
+  private static final int MAX_LOCALS = 256;
+
+  /** Thrown when a body uses something the compiler can't handle */
+  private static class Unsupported extends RuntimeException {
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+
+  /** Compiled bodies by declaration; null marks bodies that can't be compiled */
+  private final Map<Stmt.Function, LoxFunction.Body> compiled = new HashMap<>();
+
+  /**
+   * Returns the compiled body of a function, compiling it the first time.
+   *
+   * @param declaration function to compile
+   * @return compiled body, or null if the tree-walker has to run the function
+   */
+  LoxFunction.Body compile(Stmt.Function declaration) {
+    if (compiled.containsKey(declaration))
+      return compiled.get(declaration);
+
+    LoxFunction.Body body;
+    try {
+      body = new Generator(declaration).generate();
+    } catch (Unsupported unsupported) {
+      body = null;
+    }
+
+    compiled.put(declaration, body);
+    return body;
+  }
+
+  /** Generates the class for a single function body */
+  private class Generator implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Stmt.Function declaration;
+    private final String className;
+    private final ClassWriter classWriter;
+    private final ClassWriter.Method method;
+    private final List<Object> constants = new ArrayList<>();
+    /** Index of each constant in the list, so each is added once */
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    /** Break targets of the enclosing loops */
+    private final List<ClassWriter.Label> loops = new ArrayList<>();
+
+    Generator(Stmt.Function declaration) {
+      this.declaration = declaration;
+      // The JVM makes the name of a hidden class unique
+      this.className = "com/bloxi/lox/Compiled$" + declaration.name.lexeme;
+      this.classWriter = new ClassWriter(className, OBJECT, BODY);
+      this.method = classWriter.method(ClassWriter.ACC_PUBLIC, "run",
+          "(" + INTERPRETER_DESC + ENVIRONMENT_DESC + ")" + OBJECT_DESC);
+    }
+
+    LoxFunction.Body generate() {
+      int locals = FIRST_LOCAL + declaration.slotCount;
+      if (locals > MAX_LOCALS)
+        throw new Unsupported();
+
+      // Copy the frame, which holds 'this' and the parameters, into JVM locals
+      for (int slot = 0; slot < declaration.slotCount; slot++) {
+        method.load(ENVIRONMENT_SLOT);
+        method.op2(ClassWriter.Method.GETFIELD, classWriter.fieldRef(ENVIRONMENT, "slots", "[" + OBJECT_DESC), 0);
+        method.loadInt(classWriter, slot);
+        method.op(ClassWriter.Method.AALOAD, -1);
+        method.store(FIRST_LOCAL + slot);
+      }
+
+      for (Stmt statement : declaration.body) {
+        generate(statement);
+      }
+
+      // Falling off the end returns nil
+      method.op(ClassWriter.Method.ACONST_NULL, 1);
+      method.op(ClassWriter.Method.ARETURN, -1);
+
+      if (method.length() > MAX_CODE)
+        throw new Unsupported();
+      method.maxLocals(locals);
+
+      generateConstructor();
+      return define(classWriter.toByteArray());
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      if (expr.value == null) {
+        method.op(ClassWriter.Method.ACONST_NULL, 1);
+      } else if (expr.value instanceof Boolean) {
+        String field = (Boolean) expr.value ? "TRUE" : "FALSE";
+        method.op2(ClassWriter.Method.GETSTATIC,
+            classWriter.fieldRef("java/lang/Boolean", field, "Ljava/lang/Boolean;"), 1);
+      } else {
+        loadConstant(expr.value);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      generate(expr.right);
+      switch (expr.operator.type) {
+        case MINUS:
+          loadToken(expr.operator);
+          invokeRuntime("negate", "(" + OBJECT_DESC + TOKEN_DESC + ")" + OBJECT_DESC, -1);
+          break;
+        case BANG:
+          invokeRuntime("not", "(" + OBJECT_DESC + ")" + OBJECT_DESC, 0);
+          break;
+        default:
+          throw new Unsupported();
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      // The separator evaluates both sides and yields nil
+      if (expr.operator.type == TokenType.COMMA) {
+        generate(expr.left);
+        method.op(ClassWriter.Method.POP, -1);
+        generate(expr.right);
+        method.op(ClassWriter.Method.POP, -1);
+        method.op(ClassWriter.Method.ACONST_NULL, 1);
+        return null;
+      }
+
+      generate(expr.left);
+      generate(expr.right);
+
+      switch (expr.operator.type) {
+        case EQUAL_EQUAL:
+          invokeRuntime("equal", COMPARE_DESC, -1);
+          return null;
+        case BANG_EQUAL:
+          invokeRuntime("notEqual", COMPARE_DESC, -1);
+          return null;
+      }
+
+      loadToken(expr.operator);
+      switch (expr.operator.type) {
+        case GREATER:
+          invokeRuntime("greater", BINARY_DESC, -2);
+          break;
+        case GREATER_EQUAL:
+          invokeRuntime("greaterEqual", BINARY_DESC, -2);
+          break;
+        case LESS:
+          invokeRuntime("less", BINARY_DESC, -2);
+          break;
+        case LESS_EQUAL:
+          invokeRuntime("lessEqual", BINARY_DESC, -2);
+          break;
+        case MINUS:
+          invokeRuntime("subtract", BINARY_DESC, -2);
+          break;
+        case STAR:
+          invokeRuntime("multiply", BINARY_DESC, -2);
+          break;
+        case SLASH:
+          invokeRuntime("divide", BINARY_DESC, -2);
+          break;
+        case PLUS:
+          invokeRuntime("add", BINARY_DESC, -2);
+          break;
+        default:
+          throw new Unsupported();
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+      ClassWriter.Label elseBranch = new ClassWriter.Label();
+      ClassWriter.Label end = new ClassWriter.Label();
+
+      condition(expr.condition);
+      method.jump(ClassWriter.Method.IFEQ, elseBranch);
+      int depth = method.stack();
+      generate(expr.trueExpr);
+      method.jump(ClassWriter.Method.GOTO, end);
+      method.mark(elseBranch);
+      method.setStack(depth);
+      generate(expr.falseExpr);
+      method.mark(end);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      generate(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      if (expr.access == Access.GLOBAL) {
+        method.load(INTERPRETER_SLOT);
+        loadSite(expr, VARIABLE);
+        invokeRuntime("getGlobal", "(" + INTERPRETER_DESC + VARIABLE_DESC + ")" + OBJECT_DESC, -1);
+      } else {
+        loadVariable(expr.access, expr.slot);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      generate(expr.value);
+
+      switch (expr.access) {
+        case Access.GLOBAL:
+          method.load(INTERPRETER_SLOT);
+          loadSite(expr, ASSIGN);
+          invokeRuntime("assignGlobal", "(" + OBJECT_DESC + INTERPRETER_DESC + ASSIGN_DESC + ")" + OBJECT_DESC, -2);
+          break;
+        case Access.LOCAL:
+          method.op(ClassWriter.Method.DUP, 1);
+          method.store(FIRST_LOCAL + expr.slot);
+          break;
+        case Access.UPVALUE:
+          method.load(ENVIRONMENT_SLOT);
+          method.loadInt(classWriter, expr.slot);
+          invokeRuntime("setUpvalue", "(" + OBJECT_DESC + ENVIRONMENT_DESC + "I)" + OBJECT_DESC, -2);
+          break;
+        default:
+          // only locals captured by inner functions are boxed
+          throw new Unsupported();
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      ClassWriter.Label end = new ClassWriter.Label();
+
+      generate(expr.left);
+      method.op(ClassWriter.Method.DUP, 1);
+      invokeRuntime("isTruthy", "(" + OBJECT_DESC + ")Z", 0);
+
+      // short circuiting keeps the left operand as the result
+      if (expr.operator.type == TokenType.OR) {
+        method.jump(ClassWriter.Method.IFNE, end);
+      } else {
+        method.jump(ClassWriter.Method.IFEQ, end);
+      }
+
+      method.op(ClassWriter.Method.POP, -1);
+      generate(expr.right);
+      method.mark(end);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      call(expr, false);
+      return null;
+    }
+
+    /** Generates a call, or a tail call that returns a call to a Lox function as a TailCall */
+    private void call(Expr.Call expr, boolean tail) {
+      // a call on a property skips binding the method
+      boolean invoke = expr.callee instanceof Expr.Get;
+      if (invoke) {
+        Expr.Get get = (Expr.Get) expr.callee;
+        PropertyCache cache = PropertyCache.of(get);
+        // leaves the method (or null for a field) below the receiver (or the field's value)
+        generate(get.object);
+        method.op(ClassWriter.Method.DUP, 1);
+        loadCache(cache);
+        invokeRuntime("method", "(" + OBJECT_DESC + CACHE_DESC + ")" + OBJECT_DESC, -1);
+        method.op(ClassWriter.Method.DUP_X1, 1);
+        loadCache(cache);
+        invokeRuntime("receiver", "(" + OBJECT_DESC + OBJECT_DESC + CACHE_DESC + ")" + OBJECT_DESC, -2);
+      } else {
+        generate(expr.callee);
+      }
+
+      method.op2(ClassWriter.Method.NEW, classWriter.classRef("java/util/ArrayList"), 1);
+      method.op(ClassWriter.Method.DUP, 1);
+      method.loadInt(classWriter, expr.arguments.size());
+      method.op2(ClassWriter.Method.INVOKESPECIAL, classWriter.methodRef("java/util/ArrayList", "<init>", "(I)V"), -2);
+      for (Expr argument : expr.arguments) {
+        method.op(ClassWriter.Method.DUP, 1);
+        generate(argument);
+        method.invokeInterface(classWriter.interfaceMethodRef("java/util/List", "add", "(" + OBJECT_DESC + ")Z"), 1,
+            -1);
+        method.op(ClassWriter.Method.POP, -1);
+      }
+
+      loadToken(expr.paren);
+      method.load(INTERPRETER_SLOT);
+      if (invoke) {
+        invokeRuntime(tail ? "tailInvoke" : "invoke",
+            "(" + OBJECT_DESC + OBJECT_DESC + "Ljava/util/List;" + TOKEN_DESC + INTERPRETER_DESC + ")" + OBJECT_DESC, -4);
+      } else {
+        invokeRuntime(tail ? "tailCall" : "call",
+            "(" + OBJECT_DESC + "Ljava/util/List;" + TOKEN_DESC + INTERPRETER_DESC + ")" + OBJECT_DESC, -3);
+      }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      generate(expr.object);
+      loadCache(PropertyCache.of(expr));
+      invokeRuntime("getProperty", "(" + OBJECT_DESC + CACHE_DESC + ")" + OBJECT_DESC, -1);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      generate(expr.object);
+      loadToken(expr.name);
+      invokeRuntime("checkInstance", "(" + OBJECT_DESC + TOKEN_DESC + ")" + OBJECT_DESC, -1);
+      generate(expr.value);
+      loadCache(PropertyCache.of(expr));
+      invokeRuntime("setProperty", "(" + OBJECT_DESC + OBJECT_DESC + CACHE_DESC + ")" + OBJECT_DESC, -2);
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      loadVariable(expr.access, expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      generate(expr.superclass);
+      generate(expr.receiver);
+      loadCache(PropertyCache.of(expr));
+      invokeRuntime("getSuper", "(" + OBJECT_DESC + OBJECT_DESC + CACHE_DESC + ")" + OBJECT_DESC, -2);
+      return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      for (Stmt statement : stmt.statements) {
+        generate(statement);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      generate(stmt.expression);
+      if (Lox.replMode) {
+        invokeRuntime("print", "(" + OBJECT_DESC + ")V", -1);
+      } else {
+        method.op(ClassWriter.Method.POP, -1);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      generate(stmt.expression);
+      invokeRuntime("print", "(" + OBJECT_DESC + ")V", -1);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      if (stmt.initializer != null) {
+        generate(stmt.initializer);
+      } else {
+        method.op(ClassWriter.Method.ACONST_NULL, 1);
+      }
+
+      method.store(FIRST_LOCAL + stmt.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      ClassWriter.Label elseBranch = new ClassWriter.Label();
+      ClassWriter.Label end = new ClassWriter.Label();
+
+      condition(stmt.condition);
+      method.jump(ClassWriter.Method.IFEQ, elseBranch);
+      generate(stmt.thenBranch);
+      method.jump(ClassWriter.Method.GOTO, end);
+      method.mark(elseBranch);
+      if (stmt.elseBranch != null)
+        generate(stmt.elseBranch);
+      method.mark(end);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      ClassWriter.Label start = new ClassWriter.Label();
+      ClassWriter.Label end = new ClassWriter.Label();
+
+      method.mark(start);
+      condition(stmt.condition);
+      method.jump(ClassWriter.Method.IFEQ, end);
+
+      loops.add(end);
+      generate(stmt.body);
+      loops.remove(loops.size() - 1);
+
+      method.jump(ClassWriter.Method.GOTO, start);
+      method.mark(end);
+      return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+      // A 'break' in a function declared inside a loop has no loop to leave
+      if (!loops.isEmpty())
+        method.jump(ClassWriter.Method.GOTO, loops.get(loops.size() - 1));
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      // A nested function could capture the locals kept in the JVM frame
+      throw new Unsupported();
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+      // the Resolver only allows imports at the top level
+      throw new Unsupported();
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      if (stmt.tailCall) {
+        call((Expr.Call) stmt.value, true);
+      } else if (stmt.value != null) {
+        generate(stmt.value);
+      } else {
+        method.op(ClassWriter.Method.ACONST_NULL, 1);
+      }
+      method.op(ClassWriter.Method.ARETURN, -1);
+      return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+      // Methods could capture the locals kept in the JVM frame
+      throw new Unsupported();
+    }
+
+    private void generate(Stmt stmt) {
+      stmt.accept(this);
+    }
+
+    private void generate(Expr expr) {
+      expr.accept(this);
+    }
+
+    /** Evaluates an expression and leaves its truthiness as an int */
+    private void condition(Expr expr) {
+      generate(expr);
+      invokeRuntime("isTruthy", "(" + OBJECT_DESC + ")Z", 0);
+    }
+
+    /** Loads a resolved local from its JVM local, or an upvalue through the frame */
+    private void loadVariable(byte access, int slot) {
+      switch (access) {
+        case Access.LOCAL:
+          method.load(FIRST_LOCAL + slot);
+          break;
+        case Access.UPVALUE:
+          method.load(ENVIRONMENT_SLOT);
+          method.loadInt(classWriter, slot);
+          invokeRuntime("getUpvalue", "(" + ENVIRONMENT_DESC + "I)" + OBJECT_DESC, -1);
+          break;
+        default:
+          // only locals captured by inner functions are boxed
+          throw new Unsupported();
+      }
+    }
+
+    private void loadConstant(Object value) {
+      Integer index = constantIndex.get(value);
+      if (index == null) {
+        index = constants.size();
+        constants.add(value);
+        constantIndex.put(value, index);
+      }
+
+      method.load(THIS_SLOT);
+      method.op2(ClassWriter.Method.GETFIELD,
+          classWriter.fieldRef(className, "constants", "[" + OBJECT_DESC), 0);
+      method.loadInt(classWriter, index);
+      method.op(ClassWriter.Method.AALOAD, -1);
+    }
+
+    private void loadToken(Token token) {
+      loadConstant(token);
+      method.op2(ClassWriter.Method.CHECKCAST, classWriter.classRef(TOKEN), 0);
+    }
+
+    /** Loads the node of a global access, which links to the global's cell */
+    private void loadSite(Expr site, String type) {
+      loadConstant(site);
+      method.op2(ClassWriter.Method.CHECKCAST, classWriter.classRef(type), 0);
+    }
+
+    private void loadCache(PropertyCache cache) {
+      loadConstant(cache);
+      method.op2(ClassWriter.Method.CHECKCAST, classWriter.classRef(CACHE), 0);
+    }
+
+    private void invokeRuntime(String name, String descriptor, int effect) {
+      method.op2(ClassWriter.Method.INVOKESTATIC, classWriter.methodRef(RUNTIME, name, descriptor), effect);
+    }
+
+    /** The constructor stores the constants the code refers to */
+    private void generateConstructor() {
+      classWriter.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_FINAL, "constants", "[" + OBJECT_DESC);
+
+      ClassWriter.Method constructor = classWriter.method(ClassWriter.ACC_PUBLIC, "<init>", "([" + OBJECT_DESC + ")V");
+      constructor.maxLocals(2);
+      constructor.load(0);
+      constructor.op2(ClassWriter.Method.INVOKESPECIAL, classWriter.methodRef(OBJECT, "<init>", "()V"), -1);
+      constructor.load(0);
+      constructor.load(1);
+      constructor.op2(ClassWriter.Method.PUTFIELD,
+          classWriter.fieldRef(className, "constants", "[" + OBJECT_DESC), -2);
+      constructor.op(ClassWriter.Method.RETURN, 0);
+    }
+
+    private LoxFunction.Body define(byte[] bytes) {
+      try {
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+        MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+            MethodType.methodType(void.class, Object[].class));
+        return (LoxFunction.Body) constructor.invoke(constants.toArray());
+      } catch (Throwable error) {
+        // A class the JVM rejects runs on the tree-walker instead
+        throw new Unsupported();
+      }
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package com.bloxi.lox;
+
+import java.util.List;
+
+/**
+ * Operations called from classes generated by the JvmCompiler. They are small
+ * and static so the JIT can inline them into the generated code.
+ */
+final class JvmRuntime {
+  private JvmRuntime() {
+  }
+
+  static boolean isTruthy(Object object) {
+    return Interpreter.isTruthy(object);
+  }
+
+  static Object negate(Object rhs, Token operator) {
+    Interpreter.checkNumberOperand(operator, rhs);
+    return -(double) rhs;
+  }
+
+  static Object not(Object rhs) {
+    return !Interpreter.isTruthy(rhs);
+  }
+
+  static Object greater(Object lhs, Object rhs, Token operator) {
+    Interpreter.checkNumberOperands(operator, lhs, rhs);
+    return (double) lhs > (double) rhs;
+  }
+
+  static Object greaterEqual(Object lhs, Object rhs, Token operator) {
+    Interpreter.checkNumberOperands(operator, lhs, rhs);
+    return (double) lhs >= (double) rhs;
+  }
+
+  static Object less(Object lhs, Object rhs, Token operator) {
+    Interpreter.checkNumberOperands(operator, lhs, rhs);
+    return (double) lhs < (double) rhs;
+  }
+
+  static Object lessEqual(Object lhs, Object rhs, Token operator) {
+    Interpreter.checkNumberOperands(operator, lhs, rhs);
+    return (double) lhs <= (double) rhs;
+  }
+
+  static Object equal(Object lhs, Object rhs) {
+    return Interpreter.isEqual(lhs, rhs);
+  }
+
+  static Object notEqual(Object lhs, Object rhs) {
+    return !Interpreter.isEqual(lhs, rhs);
+  }
+
+  static Object subtract(Object lhs, Object rhs, Token operator) {
+    Interpreter.checkNumberOperands(operator, lhs, rhs);
+    return (double) lhs - (double) rhs;
+  }
+
+  static Object multiply(Object lhs, Object rhs, Token operator) {
+    Interpreter.checkNumberOperands(operator, lhs, rhs);
+    return (double) lhs * (double) rhs;
+  }
+
+  static Object divide(Object lhs, Object rhs, Token operator) {
+    Interpreter.checkNumberOperands(operator, lhs, rhs);
+    if ((double) rhs == 0) {
+      throw new RuntimeError(operator, "Cannot divide by zero.");
+    }
+    return (double) lhs / (double) rhs;
+  }
+
+  static Object add(Object lhs, Object rhs, Token operator) {
+    if (lhs instanceof Double && rhs instanceof Double)
+      return (double) lhs + (double) rhs;
+    // if either side is string
+    if (Interpreter.isString(lhs) || Interpreter.isString(rhs))
+      return Rope.concat(lhs, rhs);
+
+    throw new RuntimeError(operator, "At least one of the operands must be a string.");
+  }
+
+  static void print(Object value) {
+    System.out.println(Interpreter.stringify(value));
+  }
+
+  static Object call(Object callee, List<Object> arguments, Token paren, Interpreter interpreter) {
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Can only call functions and classes.");
+    }
+
+    LoxCallable function = (LoxCallable) callee;
+    Interpreter.checkArity(function, arguments.size(), paren);
+    return function.call(interpreter, arguments);
+  }
+
+  /** Makes a call in tail position, leaving a call to a Lox function to the caller */
+  static Object tailCall(Object callee, List<Object> arguments, Token paren, Interpreter interpreter) {
+    if (!(callee instanceof LoxFunction))
+      return call(callee, arguments, paren, interpreter);
+
+    LoxFunction function = (LoxFunction) callee;
+    Interpreter.checkArity(function, arguments.size(), paren);
+    return new TailCall(function, null, arguments);
+  }
+
+  /** Returns the method a call on the property invokes, or null for a field */
+  static Object method(Object object, PropertyCache cache) {
+    return cache.method(object);
+  }
+
+  /** Returns the receiver of a method, or the value of a field that is called */
+  static Object receiver(Object object, Object method, PropertyCache cache) {
+    return method != null ? object : cache.get(object);
+  }
+
+  static Object invoke(Object method, Object receiver, List<Object> arguments, Token paren, Interpreter interpreter) {
+    if (method == null)
+      return call(receiver, arguments, paren, interpreter);
+
+    LoxFunction function = (LoxFunction) method;
+    Interpreter.checkArity(function, arguments.size(), paren);
+    return function.invoke(interpreter, (LoxInstance) receiver, arguments);
+  }
+
+  /** Invokes a method in tail position, as tailCall */
+  static Object tailInvoke(Object method, Object receiver, List<Object> arguments, Token paren,
+      Interpreter interpreter) {
+    if (method == null)
+      return tailCall(receiver, arguments, paren, interpreter);
+
+    LoxFunction function = (LoxFunction) method;
+    Interpreter.checkArity(function, arguments.size(), paren);
+    return new TailCall(function, (LoxInstance) receiver, arguments);
+  }
+
+  static Object getProperty(Object object, PropertyCache cache) {
+    return cache.get(object);
+  }
+
+  /** Checks the target of a property assignment before its value is evaluated */
+  static Object checkInstance(Object object, Token name) {
+    if (!(object instanceof LoxInstance))
+      throw new RuntimeError(name, "Only instances have fields.");
+    return object;
+  }
+
+  static Object setProperty(Object object, Object value, PropertyCache cache) {
+    cache.set((LoxInstance) object, value);
+    return value;
+  }
+
+  static Object getSuper(Object superclass, Object object, PropertyCache cache) {
+    return cache.getSuper((LoxClass) superclass, (LoxInstance) object);
+  }
+
+  static Object getUpvalue(Environment environment, int index) {
+    return environment.upvalues[index].value;
+  }
+
+  static Object setUpvalue(Object value, Environment environment, int index) {
+    environment.upvalues[index].value = value;
+    return value;
+  }
+
+  static Object getGlobal(Interpreter interpreter, Expr.Variable site) {
+    return Global.of(interpreter.globals, site).get(site.name);
+  }
+
+  static Object assignGlobal(Object value, Interpreter interpreter, Expr.Assign site) {
+    Global.of(interpreter.globals, site).assign(site.name, value);
+    return value;
+  }
+}
@@ -3,31 +3,129 @@ package com.bloxi.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
   private static final Interpreter interpreter = new Interpreter();
+  private static final ModuleLoader modules = new ModuleLoader();
+  private static final Symbol MAIN = Symbol.intern("main");
   static boolean replMode = false;
-  static boolean hadError = false;
+  /** Set by the threads loading modules too */
+  static volatile boolean hadError = false;
   static boolean hadRuntimeError = false;
 
+  /** Ways of executing a resolved program */
+  enum Engine {
+    /** Walks the syntax tree directly */
+    TREE,
+    /** Compiles to bytecode and runs it on the VM */
+    VM,
+    /** Compiles to a tree of pre-linked executable nodes */
+    CLOSURE,
+    /** Walks the tree, but compiles function bodies to JVM classes */
+    JVM,
+    /** Walks the tree, and compiles functions and loops once they are hot */
+    TIERED
+  }
+
+  static Engine engine = Engine.TREE;
+  /** Runs the Optimizer on resolved programs */
+  static boolean optimize = false;
+  /** Calls before the tiered engine promotes a function */
+  static int callThreshold = 1000;
+  /** Loop iterations before the tiered engine promotes a loop */
+  static int loopThreshold = 10000;
+  /** Prints the tiered engine's promotions to stderr */
+  static boolean logTiers = false;
+  /** Cache of resolved programs, or null when none is used */
+  static ProgramCache cache = null;
+  /** Snapshot of the globals after the top level ran, or null when none is used */
+  private static Snapshot snapshot = null;
+  /** Imported file each thread is reporting errors in, or null for the script */
+  private static final ThreadLocal<Path> reportFile = new ThreadLocal<>();
+
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: bloxi [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    List<String> scripts = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--engine=")) {
+        String name = arg.substring("--engine=".length());
+        if (name.equals("tree")) {
+          engine = Engine.TREE;
+        } else if (name.equals("vm")) {
+          engine = Engine.VM;
+        } else if (name.equals("closure")) {
+          engine = Engine.CLOSURE;
+        } else if (name.equals("jvm")) {
+          engine = Engine.JVM;
+        } else if (name.equals("tiered")) {
+          engine = Engine.TIERED;
+        } else {
+          usage();
+        }
+      } else if (arg.startsWith("--call-threshold=")) {
+        callThreshold = threshold(arg.substring("--call-threshold=".length()));
+      } else if (arg.startsWith("--loop-threshold=")) {
+        loopThreshold = threshold(arg.substring("--loop-threshold=".length()));
+      } else if (arg.equals("--log-tiers")) {
+        logTiers = true;
+      } else if (arg.equals("--optimize")) {
+        optimize = true;
+      } else if (arg.startsWith("--cache-dir=")) {
+        cache = new ProgramCache(Paths.get(arg.substring("--cache-dir=".length())));
+      } else if (arg.startsWith("--snapshot=")) {
+        snapshot = new Snapshot(Paths.get(arg.substring("--snapshot=".length())));
+      } else if (arg.startsWith("--")) {
+        usage();
+      } else {
+        scripts.add(arg);
+      }
+    }
+
+    if (engine == Engine.JVM) {
+      interpreter.useJvmCompiler();
+    } else if (engine == Engine.TIERED) {
+      interpreter.useTiering(callThreshold, loopThreshold, logTiers);
+    }
+
+    if (scripts.size() > 1) {
+      usage();
+    } else if (scripts.size() == 1) {
+      runFile(scripts.get(0));
     } else {
       runPrompt();
     }
   }
 
+  private static void usage() {
+    System.out.println("Usage: bloxi [--engine=tree|vm|closure|jvm|tiered] [--optimize] [--cache-dir=DIR] [--snapshot=FILE] [script]");
+    System.out.println("Tiered engine: [--call-threshold=N] [--loop-threshold=N] [--log-tiers]");
+    System.exit(64);
+  }
+
+  private static int threshold(String value) {
+    try {
+      int count = Integer.parseInt(value);
+      if (count > 0)
+        return count;
+    } catch (NumberFormatException error) {
+      // fall through to the usage message
+    }
+    usage();
+    return 0;
+  }
+
   private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+    Module script = new Module(Paths.get(path).toAbsolutePath().normalize());
+    if (resolve(script)) {
+      if (snapshot == null) {
+        run(script);
+      } else {
+        runFromSnapshot(script);
+      }
+    }
 
     if (hadError)
       System.exit(65);
@@ -45,31 +143,138 @@ public class Lox {
       String line = reader.readLine();
       if (line == null)
         break;
-      run(line);
+      Module program = new Module(null);
+      if (resolve(line, program))
+        run(program);
       // Reset the error marker on each loop
       hadError = false;
     }
   }
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+  /**
+   * Scans, parses and resolves a file, or loads it from the cache, setting
+   * the module's statements and slot count.
+   *
+   * @return false if the file had errors
+   */
+  static boolean resolve(Module module) throws IOException {
+    String key = null;
+    if (cache != null) {
+      key = ProgramCache.key(module.path);
+      if (cache.load(key, module))
+        return true;
+    }
+
+    if (!resolve(SourceFile.read(module.path), module))
+      return false;
+
+    if (cache != null)
+      cache.store(key, module);
+    return true;
+  }
 
-    Parser parser = new Parser(tokens);
+  /**
+   * Scans, parses and resolves source into a module's statements.
+   *
+   * @return false if the source had errors
+   */
+  private static boolean resolve(CharSequence source, Module module) {
+    Parser parser = new Parser(new TokenBuffer(source));
     List<Stmt> statements = parser.parse();
 
     // Stop if there was a syntax error
     if (hadError)
-      return;
+      return false;
 
-    Resolver resolver = new Resolver(interpreter);
-    resolver.resolve(statements);
+    Resolver resolver = new Resolver();
+    module.slotCount = resolver.resolveScript(statements);
+    module.statements = statements;
 
     // Stop if there was a resolution error
-    if (hadError)
+    return !hadError;
+  }
+
+  /** Runs a resolved script, or a line typed into the REPL */
+  private static void run(Module program) {
+    if (load(program))
+      execute(program);
+  }
+
+  /**
+   * Runs a script's top level once, saving the globals it leaves to the
+   * snapshot, and restores them from there on later runs. Either way the
+   * script then runs from its entry point.
+   */
+  private static void runFromSnapshot(Module script) {
+    if (!load(script))
+      return;
+
+    if (!snapshot.restore(script, interpreter.globals, Lox::body)) {
+      execute(script);
+      // a top level that failed is run again next time
+      if (hadError || hadRuntimeError)
+        return;
+      snapshot.save(script, interpreter.globals);
+    }
+
+    runMain();
+  }
+
+  /**
+   * Optimizes a resolved program and loads the modules it imports.
+   *
+   * @return false if an imported module had an error
+   */
+  private static boolean load(Module program) {
+    if (optimize)
+      program.statements = new Optimizer().optimize(program.statements);
+
+    modules.load(program);
+    return !hadError;
+  }
+
+  private static void execute(Module program) {
+    List<Stmt> statements = program.statements;
+    int slotCount = program.slotCount;
+
+    if (engine == Engine.VM) {
+      Chunk script = new Compiler().compile(statements);
+
+      // Stop if the program was too large to compile
+      if (hadError)
+        return;
+
+      interpreter.vm().interpret(script, slotCount);
+    } else if (engine == Engine.CLOSURE) {
+      new ClosureCompiler(interpreter).interpret(statements, slotCount);
+    } else {
+      interpreter.interpret(statements, slotCount);
+    }
+  }
+
+  /** Calls the global function 'main', when the script has one */
+  private static void runMain() {
+    Object main = interpreter.globals.cell(MAIN).value;
+    if (!(main instanceof LoxFunction))
       return;
 
-    interpreter.interpret(statements);
+    LoxFunction function = (LoxFunction) main;
+    try {
+      if (function.arity() != 0)
+        throw new RuntimeError(function.declaration.name, "Entry point 'main' can't have parameters.");
+      function.call(interpreter, new ArrayList<>());
+    } catch (RuntimeError error) {
+      runtimeError(error);
+    }
+  }
+
+  /** Makes the body the current engine runs a function restored from the snapshot with */
+  private static LoxFunction.Body body(Stmt.Function declaration) {
+    if (engine == Engine.VM)
+      return new Compiler().function(declaration);
+    if (engine == Engine.CLOSURE)
+      return new ClosureCompiler(interpreter).function(declaration);
+    return interpreter.compiledBody(declaration);
   }
 
   static void error(int line, String message) {
@@ -85,10 +290,27 @@ public class Lox {
   }
 
   private static void report(int line, String where, String message) {
-    System.err.println(String.format("[line %d] Error %s: %s", line, where, message));
+    String error = String.format("[line %d] Error %s: %s", line, where, message);
+    Path file = reportFile.get();
+    if (file != null)
+      error = String.format("%s: %s", Paths.get("").toAbsolutePath().relativize(file), error);
+    System.err.println(error);
     hadError = true;
   }
 
+  /**
+   * Sets the file errors reported on this thread are in, so errors in
+   * imported files loaded at the same time can be told apart.
+   *
+   * @param file the imported file, or null for the script
+   * @return the file errors were reported in before, to set back afterwards
+   */
+  static Path reportFile(Path file) {
+    Path previous = reportFile.get();
+    reportFile.set(file);
+    return previous;
+  }
+
   static void runtimeError(RuntimeError error) {
     String errorMsg = String.format("[line %d] Runtime error: %s", error.token.line, error.getMessage());
     System.err.println(errorMsg);
@@ -1,27 +1,64 @@
 package com.bloxi.lox;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
   final String name;
   final LoxClass superclass;
-  private final Map<String, LoxFunction> methods;
+  /**
+   * Methods by selector id, inherited ones included. Classes cannot change
+   * once declared, so the table is flattened here once.
+   */
+  private final LoxFunction[] methods;
+  private final LoxFunction initializer;
+  private final int arity;
+  /** Shape of instances that have no fields yet */
+  final Shape rootShape = new Shape(this);
+  /** Most fields any instance has had, used to size new instances */
+  int fieldCapacity = 0;
 
-  LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+  LoxClass(String name, LoxClass superclass, Map<Symbol, LoxFunction> methods) {
     this.name = name;
     this.superclass = superclass;
-    this.methods = methods;
+
+    int size = superclass == null ? 0 : superclass.methods.length;
+    for (Symbol method : methods.keySet()) {
+      size = Math.max(size, Selector.of(method) + 1);
+    }
+
+    this.methods = superclass == null ? new LoxFunction[size] : Arrays.copyOf(superclass.methods, size);
+    for (Map.Entry<Symbol, LoxFunction> method : methods.entrySet()) {
+      this.methods[Selector.of(method.getKey())] = method.getValue();
+    }
+
+    this.initializer = findMethod(Selector.INIT);
+    this.arity = initializer == null ? 0 : initializer.arity();
   }
 
-  LoxFunction findMethod(String name) {
-    if (methods.containsKey(name))
-      return methods.get(name);
+  /** Returns the methods the class declares itself, leaving out inherited ones */
+  Map<Symbol, LoxFunction> declaredMethods() {
+    Map<Symbol, LoxFunction> declared = new HashMap<>();
+    for (int selector = 0; selector < methods.length; selector++) {
+      LoxFunction method = methods[selector];
+      if (method != null && (superclass == null || superclass.findMethod(selector) != method))
+        declared.put(method.declaration.name.symbol, method);
+    }
+    return declared;
+  }
 
-    if (superclass != null)
-      return superclass.findMethod(name);
+  LoxFunction findMethod(Symbol name) {
+    // a name no method has had has no selector yet
+    return findMethod(name.selector);
+  }
 
-    return null;
+  /** Returns the method with a selector id, or null */
+  LoxFunction findMethod(int selector) {
+    if (selector < 0 || selector >= methods.length)
+      return null;
+    return methods[selector];
   }
 
   @Override
@@ -29,7 +66,6 @@ class LoxClass implements LoxCallable {
     LoxInstance instance = new LoxInstance(this);
 
     // call the initializer/constructor
-    LoxFunction initializer = findMethod("init");
     if (initializer != null)
       initializer.bind(instance).call(interpreter, arguments);
 
@@ -38,12 +74,7 @@ class LoxClass implements LoxCallable {
 
   @Override
   public int arity() {
-    LoxFunction initializer = findMethod("init");
-
-    if (initializer == null)
-      return 0;
-
-    return initializer.arity();
+    return arity;
   }
 
   @Override
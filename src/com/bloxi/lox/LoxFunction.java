@@ -3,45 +3,114 @@ package com.bloxi.lox;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-  private final Stmt.Function declaration;
-  private final Environment closure;
-  private final boolean isInitializer;
+  /** A function body compiled by one of the other engines */
+  interface Body {
+    /**
+     * Runs the body in a frame that already holds the parameters.
+     *
+     * @return returned value, nil when the body falls off its end, or a
+     *         TailCall left for LoxFunction.call to make
+     */
+    Object run(Interpreter interpreter, Environment environment);
+  }
+
+  final Stmt.Function declaration;
+  /** Variables of enclosing functions this closure captured */
+  final Upvalue[] upvalues;
+  final boolean isInitializer;
+  /** Compiled body, or null when the tree-walker runs the declaration */
+  private final Body body;
+  /** Instance a bound method runs on, or null */
+  final LoxInstance receiver;
+
+  LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer) {
+    this(declaration, upvalues, isInitializer, null);
+  }
 
-  LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+  LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer, Body body) {
+    this(declaration, upvalues, isInitializer, body, null);
+  }
+
+  private LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer, Body body,
+      LoxInstance receiver) {
     this.declaration = declaration;
-    this.closure = closure;
+    this.upvalues = upvalues;
     this.isInitializer = isInitializer;
+    this.body = body;
+    this.receiver = receiver;
   }
 
   LoxFunction bind(LoxInstance instance) {
-    Environment environment = new Environment(closure);
-    environment.define("this", instance);
-    return new LoxFunction(declaration, environment, isInitializer);
+    return new LoxFunction(declaration, upvalues, isInitializer, body, instance);
+  }
+
+  /**
+   * Calls the function as a method of an instance, without creating the bound
+   * method that bind() would.
+   */
+  Object invoke(Interpreter interpreter, LoxInstance instance, List<Object> arguments) {
+    return call(interpreter, instance, arguments);
   }
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
-    Environment environment = new Environment(closure);
+    return call(interpreter, receiver, arguments);
+  }
+
+  private Object call(Interpreter interpreter, LoxInstance instance, List<Object> arguments) {
+    LoxFunction function = this;
+    Environment environment = null;
+    while (true) {
+      // a closure tail calling itself, or one of the same shape, runs again in the frame
+      if (environment == null || environment.upvalues != function.upvalues
+          || environment.slots.length != function.declaration.slotCount)
+        environment = new Environment(function.declaration.slotCount, function.upvalues);
+
+      Object value = function.run(interpreter, instance, arguments, environment);
+      if (!(value instanceof TailCall))
+        return value;
+
+      // the body left its call in tail position to this loop, so the stack stays flat
+      TailCall tailCall = (TailCall) value;
+      function = tailCall.function;
+      instance = tailCall.instance != null ? tailCall.instance : function.receiver;
+      arguments = tailCall.arguments;
+    }
+  }
 
-    // define function params as variables in the environment
+  /**
+   * Runs the function once in the given frame.
+   *
+   * @return returned value, or a TailCall left for {@link #call} to make
+   */
+  private Object run(Interpreter interpreter, LoxInstance instance, List<Object> arguments,
+      Environment environment) {
+    // a method has 'this' in slot 0, then the params
+    int first = 0;
+    if (instance != null) {
+      environment.slots[0] = instance;
+      first = 1;
+    }
     for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+      environment.slots[first + i] = arguments.get(i);
+    }
+    for (int slot : declaration.boxedParams) {
+      environment.slots[slot] = new Upvalue(environment.slots[slot]);
     }
 
-    // return value is thrown through the stack trace
-    // as an exception
-    try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (Return returnValue) {
-      // initializer always returns 'this'
+    // compiled bodies return normally
+    if (body != null) {
+      Object value = body.run(interpreter, environment);
       if (isInitializer)
-        return closure.getAt(0, "this");
-      return returnValue.value;
+        return instance;
+      return value;
     }
 
+    Object value = interpreter.executeBody(declaration.body, environment);
+    // initializer always returns 'this'
     if (isInitializer)
-      return closure.getAt(0, "this");
-    return null;
+      return instance;
+    return value;
   }
 
   @Override
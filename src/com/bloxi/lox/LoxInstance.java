@@ -1,30 +1,58 @@
 package com.bloxi.lox;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
 
 class LoxInstance {
-  private LoxClass loxClass;
-  private final Map<String, Object> fields = new HashMap<>();
+  /** Returned by getField when there is no such field, since fields can be nil */
+  static final Object ABSENT = new Object();
+
+  private static final Object[] NO_SLOTS = new Object[0];
+
+  final LoxClass loxClass;
+  /** Says which slot holds each field */
+  Shape shape;
+  Object[] slots;
 
   LoxInstance(LoxClass loxClass) {
     this.loxClass = loxClass;
+    this.shape = loxClass.rootShape;
+    // room for as many fields as any instance of the class has had so far
+    int capacity = loxClass.fieldCapacity;
+    this.slots = capacity == 0 ? NO_SLOTS : new Object[capacity];
   }
 
   Object get(Token name) {
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
+    Object value = getField(name.symbol);
+    if (value != ABSENT) {
+      return value;
     }
 
-    LoxFunction method = loxClass.findMethod(name.lexeme);
+    LoxFunction method = loxClass.findMethod(name.symbol);
     if (method != null)
       return method.bind(this);
 
     throw new RuntimeError(name, String.format("Undefined property '%s'.", name.lexeme));
   }
 
+  Object getField(Symbol name) {
+    int slot = shape.slotOf(name);
+    return slot < 0 ? ABSENT : slots[slot];
+  }
+
   void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
+    int slot = shape.slotOf(name.symbol);
+    if (slot < 0) {
+      slot = shape.size();
+      transition(shape.withField(name.symbol));
+    }
+    slots[slot] = value;
+  }
+
+  /** Moves to a shape with one more field, making room for its slot */
+  void transition(Shape next) {
+    shape = next;
+    if (slots.length < next.size())
+      slots = Arrays.copyOf(slots, Math.max(4, slots.length * 2));
   }
 
   @Override
@@ -0,0 +1,37 @@
+package com.bloxi.lox;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Resolved program of one file: a script, a file it imports, or a line typed
+ * into the REPL. The ModuleLoader loads an imported file once, however many
+ * files import it, and it runs the first time one of those imports is
+ * reached. Its top level declarations are globals, shared with every file.
+ */
+final class Module {
+  /** Absolute path of the file, or null for the REPL */
+  final Path path;
+  /** Resolved statements, set once the module is loaded */
+  List<Stmt> statements;
+  /** Slots of the module's top level frame */
+  int slotCount;
+  private boolean started = false;
+
+  Module(Path path) {
+    this.path = path;
+  }
+
+  /**
+   * Marks the module as run. A module imported again while it is still
+   * running, by a file it imports, is not run a second time.
+   *
+   * @return true the first time, when the caller should run it
+   */
+  boolean start() {
+    if (started)
+      return false;
+    started = true;
+    return true;
+  }
+}
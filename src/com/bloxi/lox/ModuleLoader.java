@@ -0,0 +1,107 @@
+package com.bloxi.lox;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Loads the files a script imports before it runs. Each file is scanned,
+ * parsed and resolved by its own task on the common ForkJoinPool, which goes
+ * on to load the file's imports, so independent files are loaded in parallel.
+ * Modules are kept by path, so a file is loaded once however many files
+ * import it, across every line of a REPL session too.
+ */
+class ModuleLoader {
+  private final Map<Path, Module> modules = new ConcurrentHashMap<>();
+  /** Tasks started and not yet waited for */
+  private final Queue<ForkJoinTask<?>> pending = new ConcurrentLinkedQueue<>();
+  /** Modules added by the load in progress, dropped again if it fails */
+  private final Queue<Module> added = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Loads everything a script imports, directly or through other modules,
+   * and links each import to its module. Errors are reported through Lox.
+   * When there are any, the modules this load added are forgotten, so a
+   * later line of the REPL importing one loads it, and reports its errors,
+   * again instead of running a module that never loaded.
+   *
+   * @param script the script, whose path is null when it was typed into the REPL
+   */
+  void load(Module script) {
+    Path directory = Paths.get("").toAbsolutePath();
+    if (script.path != null) {
+      directory = script.path.getParent();
+      // the script is already running when a module imports it
+      script.start();
+      modules.putIfAbsent(script.path, script);
+    }
+
+    link(script.statements, null, directory);
+
+    // a task starts the tasks for its imports before it finishes, so once
+    // the queue is empty every module has been loaded
+    ForkJoinTask<?> task;
+    while ((task = pending.poll()) != null) {
+      task.join();
+    }
+
+    Module module;
+    while ((module = added.poll()) != null) {
+      if (Lox.hadError)
+        modules.remove(module.path, module);
+    }
+  }
+
+  /**
+   * Links the imports of a file to their modules, starting to load new ones.
+   *
+   * @param importer the importing module's file, null for the script, whose
+   *     errors are reported without one
+   */
+  private void link(List<Stmt> statements, Path importer, Path directory) {
+    for (Stmt statement : statements) {
+      if (!(statement instanceof Stmt.Import))
+        continue;
+
+      Stmt.Import stmt = (Stmt.Import) statement;
+      Path path = directory.resolve((String) stmt.path.literal).normalize();
+      stmt.module = modules.computeIfAbsent(path, key -> {
+        Module module = new Module(key);
+        added.add(module);
+        pending.add(ForkJoinPool.commonPool().submit(() -> load(module, importer, stmt.path)));
+        return module;
+      });
+    }
+  }
+
+  /**
+   * Runs the front end on a module's file, in a task of its own. Errors are
+   * reported with the path of the file they are in, since several modules
+   * may report at once.
+   */
+  private void load(Module module, Path importer, Token importPath) {
+    Path reporting = Lox.reportFile(module.path);
+    try {
+      // an error in this module or another means nothing will run
+      if (!Lox.resolve(module))
+        return;
+    } catch (IOException error) {
+      Lox.reportFile(importer);
+      Lox.error(importPath, String.format("Can't read module '%s'.", importPath.literal));
+      return;
+    } finally {
+      Lox.reportFile(reporting);
+    }
+
+    if (Lox.optimize)
+      module.statements = new Optimizer().optimize(module.statements);
+    link(module.statements, module.path, module.path.getParent());
+  }
+}
@@ -0,0 +1,57 @@
+package com.bloxi.lox;
+
+import java.util.List;
+
+/**
+ * Functions the interpreter provides as globals. Rather than being defined
+ * before the script starts, a native is made the first time the global scope
+ * sees its name, so a script that uses none loads none of their classes.
+ */
+final class Natives {
+  private static Native clock = null;
+
+  private Natives() {
+  }
+
+  /** A native function, which a snapshot stores by its name */
+  abstract static class Native implements LoxCallable {
+    final String name;
+
+    Native(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return "<native fn>";
+    }
+  }
+
+  /** Returns the native with a name, or Global.UNDEFINED when there is none */
+  static Object lookup(Symbol name) {
+    switch (name.name) {
+      case "clock":
+        if (clock == null)
+          clock = new Clock();
+        return clock;
+      default:
+        return Global.UNDEFINED;
+    }
+  }
+
+  private static final class Clock extends Native {
+    Clock() {
+      super("clock");
+    }
+
+    @Override
+    public int arity() {
+      return 0;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+      return (double) System.currentTimeMillis() / 1000.0;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package com.bloxi.lox;
+
+/**
+ * Instruction set of the bytecode VM. Operands follow the opcode in the code
+ * stream; "u16" operands are two bytes, big endian.
+ */
+final class OpCode {
+  private OpCode() {
+  }
+
+  /** [u16 constant] push a constant */
+  static final byte CONSTANT = 0;
+  static final byte NIL = 1;
+  static final byte TRUE = 2;
+  static final byte FALSE = 3;
+  static final byte POP = 4;
+
+  /** [u16 slot] read a local of the current frame */
+  static final byte GET_LOCAL = 5;
+  /** [u16 slot] assign a local of the current frame, leaving the value */
+  static final byte SET_LOCAL = 6;
+  /** [u16 site] read a global through the cell its Variable node links to */
+  static final byte GET_GLOBAL = 7;
+  /** [u16 site] assign a global through the cell its Assign node links to, leaving the value */
+  static final byte SET_GLOBAL = 8;
+  /** [u16 name] pop a value and define it as a global */
+  static final byte DEFINE_GLOBAL = 9;
+
+  /** [u16 cache] replace an instance with one of its properties */
+  static final byte GET_PROPERTY = 10;
+  /** [u16 cache] pop value and instance, set the field, push the value */
+  static final byte SET_PROPERTY = 11;
+  /** [u16 cache] pop the instance and its superclass, push the superclass method bound to the instance */
+  static final byte GET_SUPER = 12;
+
+  static final byte EQUAL = 13;
+  static final byte GREATER = 14;
+  static final byte GREATER_EQUAL = 15;
+  static final byte LESS = 16;
+  static final byte LESS_EQUAL = 17;
+  static final byte ADD = 18;
+  static final byte SUBTRACT = 19;
+  static final byte MULTIPLY = 20;
+  static final byte DIVIDE = 21;
+  static final byte NOT = 22;
+  static final byte NEGATE = 23;
+
+  static final byte PRINT = 24;
+  /** [u16 offset] jump forward */
+  static final byte JUMP = 25;
+  /** [u16 offset] jump forward if the top of the stack is falsy, without popping */
+  static final byte JUMP_IF_FALSE = 26;
+  /** [u16 offset] jump backward */
+  static final byte LOOP = 27;
+  /** [u8 argument count] call the value below the arguments */
+  static final byte CALL = 28;
+  /** [u16 chunk] push a new function capturing its upvalues from the current frame */
+  static final byte CLOSURE = 29;
+  /** [u16 declaration, u16 chunk per method] pop the superclass, if the class has one, and push the new class */
+  static final byte CLASS = 30;
+  static final byte RETURN = 31;
+
+  /** [u16 index] read an upvalue of the running closure */
+  static final byte GET_UPVALUE = 32;
+  /** [u16 index] assign an upvalue of the running closure, leaving the value */
+  static final byte SET_UPVALUE = 33;
+
+  /**
+   * [u16 cache] look up a property to call. A method is pushed above the
+   * instance; a field replaces the instance, with nil pushed above it.
+   */
+  static final byte GET_METHOD = 34;
+  /**
+   * [u8 argument count] call the method below the arguments on the instance
+   * below it, or call that value itself when the method is nil
+   */
+  static final byte INVOKE = 35;
+  /** [u16 slot] pop a value and define it in a slot of the current frame */
+  static final byte DEFINE_LOCAL = 36;
+  /** [u16 slot] read a captured local through the Upvalue in its slot */
+  static final byte GET_BOXED = 37;
+  /** [u16 slot] assign a captured local through the Upvalue in its slot, leaving the value */
+  static final byte SET_BOXED = 38;
+  /** [u16 slot] start a captured local, putting a new Upvalue in its slot */
+  static final byte BOX = 39;
+  /**
+   * [u8 argument count] as CALL, but in tail position: a Lox function is not
+   * called but pushed as a TailCall for the RETURN that follows
+   */
+  static final byte TAIL_CALL = 40;
+  /** [u8 argument count] INVOKE in tail position, as TAIL_CALL */
+  static final byte TAIL_INVOKE = 41;
+  /** [u16 module] run an imported Module, unless an import of it already has */
+  static final byte IMPORT = 42;
+}
@@ -0,0 +1,417 @@
+package com.bloxi.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites a resolved program before it runs. Operators on literals are folded
+ * into literals, branches of an 'if', '?:', 'and' or 'or' whose condition is a
+ * literal are pruned, statements after a 'return' or 'break' are dropped, and
+ * so are expression statements that have no effect. Nodes whose children
+ * change are rebuilt with the state the Resolver gave them; everything else is
+ * kept as it is.
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  /** Returned by fold when the operator cannot be applied before running */
+  private static final Object NOT_CONSTANT = new Object();
+
+  /** Optimizes a top level script */
+  List<Stmt> optimize(List<Stmt> statements) {
+    return optimizeAll(statements);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+
+    if (right instanceof Expr.Literal) {
+      Object rhs = ((Expr.Literal) right).value;
+      if (expr.operator.type == TokenType.BANG)
+        return new Expr.Literal(!Interpreter.isTruthy(rhs));
+      // negating anything but a number is left to fail at runtime
+      if (rhs instanceof Double)
+        return new Expr.Literal(-(double) rhs);
+    }
+
+    if (right == expr.right)
+      return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      Object value = fold(expr.operator.type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+      if (value != NOT_CONSTANT)
+        return new Expr.Literal(value);
+    }
+
+    if (left == expr.left && right == expr.right)
+      return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  /**
+   * Applies a binary operator to two literal values, as the Interpreter does.
+   *
+   * @return the result, or NOT_CONSTANT where the Interpreter would report an
+   *         error
+   */
+  private static Object fold(TokenType operator, Object lhs, Object rhs) {
+    switch (operator) {
+      case EQUAL_EQUAL:
+        return Interpreter.isEqual(lhs, rhs);
+      case BANG_EQUAL:
+        return !Interpreter.isEqual(lhs, rhs);
+      case PLUS:
+        if (lhs instanceof Double && rhs instanceof Double)
+          return (double) lhs + (double) rhs;
+        if (lhs instanceof String || rhs instanceof String)
+          return Interpreter.stringify(lhs) + Interpreter.stringify(rhs);
+        return NOT_CONSTANT;
+    }
+
+    if (!(lhs instanceof Double && rhs instanceof Double))
+      return NOT_CONSTANT;
+
+    double left = (double) lhs;
+    double right = (double) rhs;
+    switch (operator) {
+      case MINUS:
+        return left - right;
+      case STAR:
+        return left * right;
+      case SLASH:
+        return right == 0 ? NOT_CONSTANT : left / right;
+      case GREATER:
+        return left > right;
+      case GREATER_EQUAL:
+        return left >= right;
+      case LESS:
+        return left < right;
+      case LESS_EQUAL:
+        return left <= right;
+      default:
+        return NOT_CONSTANT;
+    }
+  }
+
+  @Override
+  public Expr visitTernaryExpr(Expr.Ternary expr) {
+    Expr condition = optimize(expr.condition);
+    if (condition instanceof Expr.Literal) {
+      if (Interpreter.isTruthy(((Expr.Literal) condition).value))
+        return optimize(expr.trueExpr);
+      return optimize(expr.falseExpr);
+    }
+
+    Expr trueExpr = optimize(expr.trueExpr);
+    Expr falseExpr = optimize(expr.falseExpr);
+    if (condition == expr.condition && trueExpr == expr.trueExpr && falseExpr == expr.falseExpr)
+      return expr;
+    return new Expr.Ternary(condition, trueExpr, falseExpr);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = optimize(expr.expression);
+    if (expression instanceof Expr.Literal)
+      return expression;
+
+    if (expression == expr.expression)
+      return expr;
+    return new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = optimize(expr.value);
+    if (value == expr.value)
+      return expr;
+
+    Expr.Assign assign = new Expr.Assign(expr.name, value);
+    assign.access = expr.access;
+    assign.slot = expr.slot;
+    return assign;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+
+    // the operator yields its left operand when that decides it
+    if (left instanceof Expr.Literal) {
+      boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+      if (truthy == (expr.operator.type == TokenType.OR))
+        return left;
+      return optimize(expr.right);
+    }
+
+    Expr right = optimize(expr.right);
+    if (left == expr.left && right == expr.right)
+      return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = optimize(expr.callee);
+    List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+    boolean changed = callee != expr.callee;
+    for (Expr argument : expr.arguments) {
+      Expr optimized = optimize(argument);
+      changed |= optimized != argument;
+      arguments.add(optimized);
+    }
+
+    if (!changed)
+      return expr;
+    return new Expr.Call(callee, expr.paren, arguments);
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = optimize(expr.object);
+    if (object == expr.object)
+      return expr;
+    return new Expr.Get(object, expr.name);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = optimize(expr.object);
+    Expr value = optimize(expr.value);
+    if (object == expr.object && value == expr.value)
+      return expr;
+    return new Expr.Set(object, expr.name, value);
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    List<Stmt> statements = optimizeAll(stmt.statements);
+    if (statements.isEmpty())
+      return null;
+    if (statements.equals(stmt.statements))
+      return stmt;
+    return new Stmt.Block(statements);
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+
+    // the REPL prints the value of every expression statement
+    if (!Lox.replMode && isPure(expression))
+      return null;
+
+    if (expression == stmt.expression)
+      return stmt;
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression)
+      return stmt;
+    return new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null)
+      return stmt;
+
+    Expr initializer = optimize(stmt.initializer);
+    if (initializer == stmt.initializer)
+      return stmt;
+
+    Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+    var.slot = stmt.slot;
+    var.captured = stmt.captured;
+    return var;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal) {
+      if (Interpreter.isTruthy(((Expr.Literal) condition).value))
+        return optimize(stmt.thenBranch);
+      return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+    }
+
+    Stmt thenBranch = orEmpty(optimize(stmt.thenBranch));
+    Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch)
+      return stmt;
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value))
+      return null;
+
+    Stmt body = orEmpty(optimize(stmt.body));
+    if (condition == stmt.condition && body == stmt.body)
+      return stmt;
+    return new Stmt.While(condition, body);
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    List<Stmt> body = optimizeAll(stmt.body);
+    if (body.equals(stmt.body))
+      return stmt;
+
+    Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+    function.slot = stmt.slot;
+    function.captured = stmt.captured;
+    function.slotCount = stmt.slotCount;
+    function.upvalues = stmt.upvalues;
+    function.boxedParams = stmt.boxedParams;
+    return function;
+  }
+
+  @Override
+  public Stmt visitImportStmt(Stmt.Import stmt) {
+    // the ModuleLoader optimizes the module itself
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null)
+      return stmt;
+
+    Expr value = optimize(stmt.value);
+    if (value == stmt.value)
+      return stmt;
+
+    Stmt.Return optimized = new Stmt.Return(stmt.keyword, value);
+    optimized.tailCall = stmt.tailCall;
+    return optimized;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+    for (Stmt.Function method : stmt.methods) {
+      methods.add((Stmt.Function) optimize(method));
+    }
+    if (methods.equals(stmt.methods))
+      return stmt;
+
+    Stmt.Class loxClass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+    loxClass.slot = stmt.slot;
+    loxClass.captured = stmt.captured;
+    loxClass.superSlot = stmt.superSlot;
+    return loxClass;
+  }
+
+  private Expr optimize(Expr expr) {
+    return expr.accept(this);
+  }
+
+  /** Optimizes a statement, returning null when nothing of it is left */
+  private Stmt optimize(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private List<Stmt> optimizeAll(List<Stmt> statements) {
+    List<Stmt> optimized = new ArrayList<>(statements.size());
+    for (Stmt statement : statements) {
+      Stmt result = optimize(statement);
+      if (result == null)
+        continue;
+
+      optimized.add(result);
+      // nothing after a 'return' or 'break' runs
+      if (completesAbruptly(result))
+        break;
+    }
+    return optimized;
+  }
+
+  /** Stands in for a removed statement where one is needed */
+  private static Stmt orEmpty(Stmt stmt) {
+    return stmt != null ? stmt : new Stmt.Block(new ArrayList<>());
+  }
+
+  /** Whether a statement always ends in a 'return' or 'break' */
+  private static boolean completesAbruptly(Stmt stmt) {
+    if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break)
+      return true;
+    if (stmt instanceof Stmt.Block) {
+      // the block was optimized, so only its last statement can end it
+      List<Stmt> statements = ((Stmt.Block) stmt).statements;
+      return !statements.isEmpty() && completesAbruptly(statements.get(statements.size() - 1));
+    }
+    if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If) stmt;
+      return ifStmt.elseBranch != null && completesAbruptly(ifStmt.thenBranch)
+          && completesAbruptly(ifStmt.elseBranch);
+    }
+    return false;
+  }
+
+  /** Whether evaluating an expression can neither fail nor change anything */
+  private static boolean isPure(Expr expr) {
+    if (expr instanceof Expr.Literal || expr instanceof Expr.This)
+      return true;
+    if (expr instanceof Expr.Variable)
+      // reading an undefined global is an error
+      return ((Expr.Variable) expr).access != Access.GLOBAL;
+    if (expr instanceof Expr.Grouping)
+      return isPure(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      return unary.operator.type == TokenType.BANG && isPure(unary.right);
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      TokenType operator = binary.operator.type;
+      return (operator == TokenType.EQUAL_EQUAL || operator == TokenType.BANG_EQUAL) && isPure(binary.left)
+          && isPure(binary.right);
+    }
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical) expr;
+      return isPure(logical.left) && isPure(logical.right);
+    }
+    if (expr instanceof Expr.Ternary) {
+      Expr.Ternary ternary = (Expr.Ternary) expr;
+      return isPure(ternary.condition) && isPure(ternary.trueExpr) && isPure(ternary.falseExpr);
+    }
+    return false;
+  }
+}
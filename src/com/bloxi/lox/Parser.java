@@ -8,10 +8,11 @@ class Parser {
   private static class ParseError extends RuntimeException {
   }
 
-  private final List<Token> tokens;
+  /** Tokens are read by type, and only made into Tokens when a node needs one */
+  private final TokenBuffer tokens;
   private int current = 0;
 
-  Parser(List<Token> tokens) {
+  Parser(TokenBuffer tokens) {
     this.tokens = tokens;
   }
 
@@ -32,6 +33,8 @@ class Parser {
         return function("function");
       if (match(TokenType.VAR))
         return varDeclaration();
+      if (match(TokenType.IMPORT))
+        return importDeclaration();
 
       return statement();
     } catch (ParseError error) {
@@ -42,7 +45,8 @@ class Parser {
   }
 
   private Stmt classDeclaration() {
-    Token name = consume(TokenType.IDENTIFIER, "Expected class name.");
+    consume(TokenType.IDENTIFIER, "Expected class name.");
+    Token name = previous();
 
     Expr.Variable superclass = null;
     if (match(TokenType.LESS)) {
@@ -62,7 +66,8 @@ class Parser {
   }
 
   private Stmt function(String kind) {
-    Token name = consume(TokenType.IDENTIFIER, String.format("Expected %s name.", kind));
+    consume(TokenType.IDENTIFIER, String.format("Expected %s name.", kind));
+    Token name = previous();
     consume(TokenType.LEFT_PAREN, String.format("Expected '(' after %s name.", kind));
     List<Token> parameters = new ArrayList<>();
 
@@ -72,7 +77,8 @@ class Parser {
           error(peek(), "Can't have more than 255 parameters.");
         }
 
-        parameters.add(consume(TokenType.IDENTIFIER, "Expected parameter name."));
+        consume(TokenType.IDENTIFIER, "Expected parameter name.");
+        parameters.add(previous());
       } while (match(TokenType.COMMA));
     }
     consume(TokenType.RIGHT_PAREN, "Expected ')' after parameters.");
@@ -82,8 +88,17 @@ class Parser {
     return new Stmt.Function(name, parameters, body);
   }
 
+  private Stmt importDeclaration() {
+    Token keyword = previous();
+    consume(TokenType.STRING, "Expected a path after 'import'.");
+    Token path = previous();
+    consume(TokenType.SEMICOLON, "Expected ';' after import.");
+    return new Stmt.Import(keyword, path);
+  }
+
   private Stmt varDeclaration() {
-    Token name = consume(TokenType.IDENTIFIER, "Expected variable name.");
+    consume(TokenType.IDENTIFIER, "Expected variable name.");
+    Token name = previous();
 
     Expr initializer = null;
     if (match(TokenType.EQUAL)) {
@@ -354,7 +369,8 @@ class Parser {
       if (match(TokenType.LEFT_PAREN)) {
         expr = finishCall(expr);
       } else if (match(TokenType.DOT)) {
-        Token name = consume(TokenType.IDENTIFIER, "Expected property name after '.'.");
+        consume(TokenType.IDENTIFIER, "Expected property name after '.'.");
+        Token name = previous();
         expr = new Expr.Get(expr, name);
       } else {
         break;
@@ -381,7 +397,8 @@ class Parser {
     if (match(TokenType.SUPER)) {
       Token keyword = previous();
       consume(TokenType.DOT, "Expected '.' after 'super'.");
-      Token method = consume(TokenType.IDENTIFIER, "Expected superclass method name.");
+      consume(TokenType.IDENTIFIER, "Expected superclass method name.");
+      Token method = previous();
       return new Expr.Super(keyword, method);
     }
 
@@ -403,14 +420,15 @@ class Parser {
       Token errToken;
       if (current == 0) {
         // immediate EOF means empty source
-        errToken = tokens.get(current);
+        errToken = peek();
       } else {
         errToken = previous();
       }
       throw error(errToken, "Unexpected EOF");
     }
 
-    Token nextToken = advance();
+    advance();
+    Token nextToken = previous();
     switch (nextToken.type) {
       // binary or ternary operators appearing first is an error
       case COMMA:
@@ -440,12 +458,12 @@ class Parser {
 
     // ...and find the start of the next statement.
     while (!isAtEnd()) {
-      if (previous().type == TokenType.SEMICOLON)
+      if (tokens.type(current - 1) == TokenType.SEMICOLON)
         return;
 
       // encountering one of these tokens
       // means the parser is at the start of a new statement
-      switch (peek().type) {
+      switch (tokens.type(current)) {
         case CLASS:
         case FUN:
         case VAR:
@@ -475,15 +493,17 @@ class Parser {
 
   /**
    * Checks if the next token is of the given type. If not, throws and error with
-   * the given message. If there's an error, the token is not consumed.
+   * the given message. If there's an error, the token is not consumed. The
+   * token itself is left to previous(), so only the callers that keep it make it.
    *
    * @param type    type of token to find
    * @param message error message to throw if not found
-   * @return the found token
    */
-  private Token consume(TokenType type, String message) {
-    if (check(type))
-      return advance();
+  private void consume(TokenType type, String message) {
+    if (check(type)) {
+      advance();
+      return;
+    }
 
     throw error(peek(), message);
   }
@@ -515,18 +535,15 @@ class Parser {
   private boolean check(TokenType type) {
     if (isAtEnd())
       return false;
-    return peek().type == type;
+    return tokens.type(current) == type;
   }
 
   /**
-   * Consumes and returns the current token.
-   *
-   * @return current token
+   * Consumes the current token.
    */
-  private Token advance() {
+  private void advance() {
     if (!isAtEnd())
       current++;
-    return previous();
   }
 
   /**
@@ -535,7 +552,7 @@ class Parser {
    * @return true if EOF is reached
    */
   private boolean isAtEnd() {
-    return peek().type == TokenType.EOF;
+    return tokens.type(current) == TokenType.EOF;
   }
 
   /**
@@ -544,7 +561,7 @@ class Parser {
    * @return current token
    */
   private Token peek() {
-    return tokens.get(current);
+    return tokens.token(current);
   }
 
   /**
@@ -553,7 +570,7 @@ class Parser {
    * @return previous token
    */
   private Token previous() {
-    return tokens.get(current - 1);
+    return tokens.token(current - 1);
   }
 
   /**
@@ -587,7 +604,8 @@ class Parser {
       } while (match(TokenType.COMMA));
     }
 
-    Token paren = consume(TokenType.RIGHT_PAREN, "Expected ')' after arguments.");
+    consume(TokenType.RIGHT_PAREN, "Expected ')' after arguments.");
+    Token paren = previous();
     return new Expr.Call(callee, paren, arguments);
   }
 }
@@ -0,0 +1,735 @@
+package com.bloxi.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Directory of resolved programs, each stored under a hash of its file's
+ * contents. A file that is run again unchanged is loaded from here instead of
+ * being scanned, parsed and resolved. The trees are stored with the slots and
+ * accesses the Resolver gave them; state the engines fill in as the program
+ * runs, such as specializations and inline caches, starts out empty as it does
+ * after resolving. A cache entry that can't be read is treated as missing.
+ */
+final class ProgramCache {
+  private static final int MAGIC = 0x426c7843;
+  /** Changed whenever the format or what the Resolver records changes */
+  private static final int VERSION = 1;
+  private static final TokenType[] TYPES = TokenType.values();
+
+  // node tags, with 0 standing for a missing node
+  private static final byte LITERAL = 1;
+  private static final byte UNARY = 2;
+  private static final byte BINARY = 3;
+  private static final byte TERNARY = 4;
+  private static final byte GROUPING = 5;
+  private static final byte VARIABLE = 6;
+  private static final byte ASSIGN = 7;
+  private static final byte LOGICAL = 8;
+  private static final byte CALL = 9;
+  private static final byte GET = 10;
+  private static final byte SET = 11;
+  private static final byte THIS = 12;
+  private static final byte SUPER = 13;
+  private static final byte BLOCK = 14;
+  private static final byte EXPRESSION = 15;
+  private static final byte PRINT = 16;
+  private static final byte VAR = 17;
+  private static final byte IF = 18;
+  private static final byte WHILE = 19;
+  private static final byte BREAK = 20;
+  private static final byte FUNCTION = 21;
+  private static final byte RETURN = 22;
+  private static final byte CLASS = 23;
+  private static final byte IMPORT = 24;
+
+  // value tags
+  private static final byte NIL = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+  private static final byte NUMBER = 3;
+  private static final byte STRING = 4;
+
+  private final Path directory;
+
+  ProgramCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /** Hashes the contents of a file into the name of its cache entry */
+  static String key(Path file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException error) {
+      throw new IllegalStateException(error);
+    }
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    StringBuilder key = new StringBuilder();
+    for (byte b : digest.digest()) {
+      key.append(String.format("%02x", b));
+    }
+    return key.toString();
+  }
+
+  /**
+   * Loads a cached program into a module.
+   *
+   * @return false when there is no usable entry
+   */
+  boolean load(String key, Module module) {
+    Path entry = directory.resolve(key + ".bloxc");
+    if (!Files.exists(entry))
+      return false;
+
+    try {
+      Reader reader = new Reader(ByteBuffer.wrap(Files.readAllBytes(entry)));
+      if (reader.in.getInt() != MAGIC || reader.in.getInt() != VERSION)
+        return false;
+
+      int slotCount = reader.i32();
+      List<Stmt> statements = reader.stmts();
+      module.slotCount = slotCount;
+      module.statements = statements;
+      return true;
+    } catch (IOException | RuntimeException error) {
+      // written by another version, or cut short
+      return false;
+    }
+  }
+
+  /**
+   * Stores a resolved program. Entries are written to a temporary file and
+   * moved into place, so other processes never read one half written. Failing
+   * to write only costs the next run the time to resolve the file again.
+   */
+  void store(String key, Module module) {
+    Writer writer = new Writer();
+    writer.fixed(MAGIC);
+    writer.fixed(VERSION);
+    writer.i32(module.slotCount);
+    writer.stmts(module.statements);
+
+    try {
+      Files.createDirectories(directory);
+      replace(directory.resolve(key + ".bloxc"), writer.out.toByteArray());
+    } catch (IOException error) {
+      // running does not depend on the cache
+    }
+  }
+
+  /**
+   * Writes a file through a temporary file in the same directory, moved over
+   * it once complete. The temporary file is deleted if writing or moving it
+   * fails, so failed runs don't leave them behind.
+   */
+  static void replace(Path file, byte[] bytes) throws IOException {
+    Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temporary, bytes);
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Writes trees depth first, each node as its tag followed by its fields.
+   * Ints are mostly small lines, slots and indexes, so they are written in
+   * as few bytes as they need.
+   */
+  private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    /** Strings already written, by the index they are referred to with */
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    void u8(int value) {
+      out.write(value);
+    }
+
+    void fixed(int value) {
+      out.write(value >>> 24);
+      out.write(value >>> 16);
+      out.write(value >>> 8);
+      out.write(value);
+    }
+
+    /** Writes seven bits a byte, low first, after moving the sign to bit 0 so -1 is small */
+    void i32(int value) {
+      int bits = (value << 1) ^ (value >> 31);
+      while ((bits & ~0x7f) != 0) {
+        out.write((bits & 0x7f) | 0x80);
+        bits >>>= 7;
+      }
+      out.write(bits);
+    }
+
+    void bool(boolean value) {
+      out.write(value ? 1 : 0);
+    }
+
+    /** Writes a string the first time it is seen, and its index after that */
+    void string(String value) {
+      Integer index = strings.get(value);
+      if (index != null) {
+        i32(index);
+        return;
+      }
+
+      strings.put(value, strings.size());
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      i32(-1);
+      i32(bytes.length);
+      out.write(bytes, 0, bytes.length);
+    }
+
+    void value(Object value) {
+      if (value == null) {
+        u8(NIL);
+      } else if (value instanceof Boolean) {
+        u8((Boolean) value ? TRUE : FALSE);
+      } else if (value instanceof Double) {
+        u8(NUMBER);
+        long bits = Double.doubleToRawLongBits((double) value);
+        fixed((int) (bits >>> 32));
+        fixed((int) bits);
+      } else {
+        u8(STRING);
+        string(value.toString());
+      }
+    }
+
+    void ints(int[] values) {
+      if (values == null) {
+        i32(-1);
+        return;
+      }
+      i32(values.length);
+      for (int value : values) {
+        i32(value);
+      }
+    }
+
+    void token(Token token) {
+      u8(token.type.ordinal());
+      i32(token.line);
+      string(token.lexeme);
+      value(token.literal);
+    }
+
+    void tokens(List<Token> tokens) {
+      i32(tokens.size());
+      for (Token token : tokens) {
+        token(token);
+      }
+    }
+
+    void expr(Expr expr) {
+      if (expr == null) {
+        u8(0);
+      } else {
+        expr.accept(this);
+      }
+    }
+
+    void exprs(List<Expr> exprs) {
+      i32(exprs.size());
+      for (Expr expr : exprs) {
+        expr(expr);
+      }
+    }
+
+    void stmt(Stmt stmt) {
+      if (stmt == null) {
+        u8(0);
+      } else {
+        stmt.accept(this);
+      }
+    }
+
+    void stmts(List<? extends Stmt> stmts) {
+      i32(stmts.size());
+      for (Stmt stmt : stmts) {
+        stmt(stmt);
+      }
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      u8(LITERAL);
+      value(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      u8(UNARY);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      u8(BINARY);
+      expr(expr.left);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+      u8(TERNARY);
+      expr(expr.condition);
+      expr(expr.trueExpr);
+      expr(expr.falseExpr);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      u8(GROUPING);
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      u8(VARIABLE);
+      token(expr.name);
+      u8(expr.access);
+      i32(expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      u8(ASSIGN);
+      token(expr.name);
+      expr(expr.value);
+      u8(expr.access);
+      i32(expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      u8(LOGICAL);
+      expr(expr.left);
+      token(expr.operator);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      u8(CALL);
+      expr(expr.callee);
+      token(expr.paren);
+      exprs(expr.arguments);
+      return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      u8(GET);
+      expr(expr.object);
+      token(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      u8(SET);
+      expr(expr.object);
+      token(expr.name);
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      u8(THIS);
+      token(expr.keyword);
+      u8(expr.access);
+      i32(expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      u8(SUPER);
+      token(expr.keyword);
+      token(expr.method);
+      // the reads of the superclass and the instance the Resolver added
+      expr(expr.superclass);
+      expr(expr.receiver);
+      return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      u8(BLOCK);
+      stmts(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      u8(EXPRESSION);
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      u8(PRINT);
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      u8(VAR);
+      token(stmt.name);
+      expr(stmt.initializer);
+      i32(stmt.slot);
+      bool(stmt.captured);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      u8(IF);
+      expr(stmt.condition);
+      stmt(stmt.thenBranch);
+      stmt(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      u8(WHILE);
+      expr(stmt.condition);
+      stmt(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+      u8(BREAK);
+      token(stmt.token);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      u8(FUNCTION);
+      token(stmt.name);
+      tokens(stmt.params);
+      stmts(stmt.body);
+      i32(stmt.slot);
+      bool(stmt.captured);
+      i32(stmt.slotCount);
+      ints(stmt.upvalues);
+      ints(stmt.boxedParams);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      u8(RETURN);
+      token(stmt.keyword);
+      expr(stmt.value);
+      bool(stmt.tailCall);
+      return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+      u8(CLASS);
+      token(stmt.name);
+      expr(stmt.superclass);
+      stmts(stmt.methods);
+      i32(stmt.slot);
+      bool(stmt.captured);
+      i32(stmt.superSlot);
+      return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+      // the ModuleLoader links the import to its module again
+      u8(IMPORT);
+      token(stmt.keyword);
+      token(stmt.path);
+      return null;
+    }
+  }
+
+  /** Rebuilds the trees a Writer wrote */
+  private static final class Reader {
+    private final ByteBuffer in;
+    private final List<String> strings = new ArrayList<>();
+
+    Reader(ByteBuffer in) {
+      this.in = in;
+    }
+
+    int i32() {
+      int bits = 0;
+      for (int shift = 0;; shift += 7) {
+        byte b = in.get();
+        bits |= (b & 0x7f) << shift;
+        if (b >= 0)
+          break;
+      }
+      return (bits >>> 1) ^ -(bits & 1);
+    }
+
+    String string() {
+      int index = i32();
+      if (index >= 0)
+        return strings.get(index);
+
+      byte[] bytes = new byte[i32()];
+      in.get(bytes);
+      String value = new String(bytes, StandardCharsets.UTF_8);
+      strings.add(value);
+      return value;
+    }
+
+    Object value() {
+      switch (in.get()) {
+        case NIL:
+          return null;
+        case TRUE:
+          return true;
+        case FALSE:
+          return false;
+        case NUMBER:
+          return in.getDouble();
+        case STRING:
+          return string();
+        default:
+          throw new IllegalStateException("Unknown value tag.");
+      }
+    }
+
+    int[] ints() {
+      int length = i32();
+      if (length < 0)
+        return null;
+      int[] values = new int[length];
+      for (int i = 0; i < length; i++) {
+        values[i] = i32();
+      }
+      return values;
+    }
+
+    Token token() {
+      TokenType type = TYPES[in.get()];
+      int line = i32();
+      String lexeme = string();
+      Object literal = value();
+
+      // identifiers and keywords are interned, as the Scanner does
+      if (literal == null && !lexeme.isEmpty() && Scanner.isAlpha(lexeme.charAt(0)))
+        return new Token(type, Symbol.intern(lexeme), line);
+      return new Token(type, lexeme, literal, line);
+    }
+
+    List<Token> tokens() {
+      int size = i32();
+      List<Token> tokens = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        tokens.add(token());
+      }
+      return tokens;
+    }
+
+    List<Expr> exprs() {
+      int size = i32();
+      List<Expr> exprs = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        exprs.add(expr());
+      }
+      return exprs;
+    }
+
+    List<Stmt> stmts() {
+      int size = i32();
+      List<Stmt> stmts = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        stmts.add(stmt());
+      }
+      return stmts;
+    }
+
+    Expr expr() {
+      byte tag = in.get();
+      switch (tag) {
+        case 0:
+          return null;
+        case LITERAL:
+          return new Expr.Literal(value());
+        case UNARY: {
+          Token operator = token();
+          return new Expr.Unary(operator, expr());
+        }
+        case BINARY: {
+          Expr left = expr();
+          Token operator = token();
+          return new Expr.Binary(left, operator, expr());
+        }
+        case TERNARY: {
+          Expr condition = expr();
+          Expr trueExpr = expr();
+          return new Expr.Ternary(condition, trueExpr, expr());
+        }
+        case GROUPING:
+          return new Expr.Grouping(expr());
+        case VARIABLE: {
+          Expr.Variable variable = new Expr.Variable(token());
+          variable.access = in.get();
+          variable.slot = i32();
+          return variable;
+        }
+        case ASSIGN: {
+          Token name = token();
+          Expr.Assign assign = new Expr.Assign(name, expr());
+          assign.access = in.get();
+          assign.slot = i32();
+          return assign;
+        }
+        case LOGICAL: {
+          Expr left = expr();
+          Token operator = token();
+          return new Expr.Logical(left, operator, expr());
+        }
+        case CALL: {
+          Expr callee = expr();
+          Token paren = token();
+          return new Expr.Call(callee, paren, exprs());
+        }
+        case GET: {
+          Expr object = expr();
+          return new Expr.Get(object, token());
+        }
+        case SET: {
+          Expr object = expr();
+          Token name = token();
+          return new Expr.Set(object, name, expr());
+        }
+        case THIS: {
+          Expr.This expr = new Expr.This(token());
+          expr.access = in.get();
+          expr.slot = i32();
+          return expr;
+        }
+        case SUPER: {
+          Token keyword = token();
+          Expr.Super expr = new Expr.Super(keyword, token());
+          expr.superclass = (Expr.Variable) expr();
+          expr.receiver = (Expr.This) expr();
+          return expr;
+        }
+        default:
+          throw new IllegalStateException("Unknown expression tag " + tag + ".");
+      }
+    }
+
+    Stmt stmt() {
+      byte tag = in.get();
+      switch (tag) {
+        case 0:
+          return null;
+        case BLOCK:
+          return new Stmt.Block(stmts());
+        case EXPRESSION:
+          return new Stmt.Expression(expr());
+        case PRINT:
+          return new Stmt.Print(expr());
+        case VAR: {
+          Token name = token();
+          Stmt.Var stmt = new Stmt.Var(name, expr());
+          stmt.slot = i32();
+          stmt.captured = in.get() != 0;
+          return stmt;
+        }
+        case IF: {
+          Expr condition = expr();
+          Stmt thenBranch = stmt();
+          return new Stmt.If(condition, thenBranch, stmt());
+        }
+        case WHILE: {
+          Expr condition = expr();
+          return new Stmt.While(condition, stmt());
+        }
+        case BREAK:
+          return new Stmt.Break(token());
+        case FUNCTION:
+          return function();
+        case RETURN: {
+          Token keyword = token();
+          Stmt.Return stmt = new Stmt.Return(keyword, expr());
+          stmt.tailCall = in.get() != 0;
+          return stmt;
+        }
+        case CLASS: {
+          Token name = token();
+          Expr.Variable superclass = (Expr.Variable) expr();
+          int size = i32();
+          List<Stmt.Function> methods = new ArrayList<>(size);
+          for (int i = 0; i < size; i++) {
+            in.get();
+            methods.add(function());
+          }
+
+          Stmt.Class stmt = new Stmt.Class(name, superclass, methods);
+          stmt.slot = i32();
+          stmt.captured = in.get() != 0;
+          stmt.superSlot = i32();
+          return stmt;
+        }
+        case IMPORT: {
+          Token keyword = token();
+          return new Stmt.Import(keyword, token());
+        }
+        default:
+          throw new IllegalStateException("Unknown statement tag " + tag + ".");
+      }
+    }
+
+    /** Reads a function, whose tag has been read */
+    Stmt.Function function() {
+      Token name = token();
+      List<Token> params = tokens();
+      Stmt.Function stmt = new Stmt.Function(name, params, stmts());
+      stmt.slot = i32();
+      stmt.captured = in.get() != 0;
+      stmt.slotCount = i32();
+      stmt.upvalues = ints();
+      stmt.boxedParams = ints();
+      return stmt;
+    }
+  }
+}
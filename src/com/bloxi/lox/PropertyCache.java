@@ -0,0 +1,158 @@
+package com.bloxi.lox;
+
+/**
+ * Inline cache of one property access site. Get and Set sites are keyed by
+ * the receiver's Shape and remember the field's slot, or the method the name
+ * resolved to, or for a Set that adds a field, the shape it moves to. Super
+ * sites are keyed by the superclass. A site remembers up to four receivers;
+ * one that sees more looks the extra ones up every time. Shapes and classes
+ * never change, so entries never go stale.
+ */
+class PropertyCache {
+  private static final int POLYMORPHIC_LIMIT = 4;
+
+  final Token name;
+  /** Shape, or the superclass at a super site */
+  private final Object[] receivers = new Object[POLYMORPHIC_LIMIT];
+  /** Slot of the field, or -1 when the name is a method */
+  private final int[] slots = new int[POLYMORPHIC_LIMIT];
+  private final LoxFunction[] methods = new LoxFunction[POLYMORPHIC_LIMIT];
+  /** Shape a Set moves the instance to, which is the receiver's own unless it adds a field */
+  private final Shape[] transitions = new Shape[POLYMORPHIC_LIMIT];
+  private int size = 0;
+
+  PropertyCache(Token name) {
+    this.name = name;
+  }
+
+  static PropertyCache of(Expr.Get expr) {
+    if (expr.cache == null)
+      expr.cache = new PropertyCache(expr.name);
+    return expr.cache;
+  }
+
+  static PropertyCache of(Expr.Set expr) {
+    if (expr.cache == null)
+      expr.cache = new PropertyCache(expr.name);
+    return expr.cache;
+  }
+
+  static PropertyCache of(Expr.Super expr) {
+    if (expr.cache == null)
+      expr.cache = new PropertyCache(expr.method);
+    return expr.cache;
+  }
+
+  /** Reads the property, as LoxInstance.get does */
+  Object get(Object object) {
+    if (!(object instanceof LoxInstance))
+      throw new RuntimeError(name, "Only instances have properties.");
+
+    LoxInstance instance = (LoxInstance) object;
+    Shape shape = instance.shape;
+    for (int i = 0; i < size; i++) {
+      if (receivers[i] == shape) {
+        if (slots[i] >= 0)
+          return instance.slots[slots[i]];
+        return methods[i].bind(instance);
+      }
+    }
+
+    int slot = shape.slotOf(name.symbol);
+    if (slot >= 0) {
+      remember(shape, slot, null, null);
+      return instance.slots[slot];
+    }
+
+    LoxFunction method = instance.loxClass.findMethod(name.symbol);
+    if (method != null) {
+      remember(shape, -1, method, null);
+      return method.bind(instance);
+    }
+
+    throw new RuntimeError(name, String.format("Undefined property '%s'.", name.lexeme));
+  }
+
+  /**
+   * Looks up the property for a call on it, so that a method can be invoked
+   * without binding it first.
+   *
+   * @return the method, or null when the property is a field
+   */
+  LoxFunction method(Object object) {
+    if (!(object instanceof LoxInstance))
+      throw new RuntimeError(name, "Only instances have properties.");
+
+    LoxInstance instance = (LoxInstance) object;
+    Shape shape = instance.shape;
+    for (int i = 0; i < size; i++) {
+      if (receivers[i] == shape)
+        return methods[i];
+    }
+
+    int slot = shape.slotOf(name.symbol);
+    if (slot >= 0) {
+      remember(shape, slot, null, null);
+      return null;
+    }
+
+    LoxFunction method = instance.loxClass.findMethod(name.symbol);
+    if (method != null) {
+      remember(shape, -1, method, null);
+      return method;
+    }
+
+    throw new RuntimeError(name, String.format("Undefined property '%s'.", name.lexeme));
+  }
+
+  /** Writes a field, as LoxInstance.set does */
+  void set(LoxInstance instance, Object value) {
+    Shape shape = instance.shape;
+    for (int i = 0; i < size; i++) {
+      if (receivers[i] == shape) {
+        if (transitions[i] != shape)
+          instance.transition(transitions[i]);
+        instance.slots[slots[i]] = value;
+        return;
+      }
+    }
+
+    int slot = shape.slotOf(name.symbol);
+    Shape next = shape;
+    if (slot < 0) {
+      slot = shape.size();
+      next = shape.withField(name.symbol);
+      instance.transition(next);
+    }
+    remember(shape, slot, null, next);
+    instance.slots[slot] = value;
+  }
+
+  /** Looks up a method of the superclass for a 'super' expression */
+  Object getSuper(LoxClass superclass, LoxInstance object) {
+    for (int i = 0; i < size; i++) {
+      if (receivers[i] == superclass)
+        return methods[i].bind(object);
+    }
+
+    LoxFunction method = superclass.findMethod(name.symbol);
+    if (method == null) {
+      String errorMsg = String.format("Undefined property '%s'.", name.lexeme);
+      throw new RuntimeError(name, errorMsg);
+    }
+
+    remember(superclass, -1, method, null);
+    return method.bind(object);
+  }
+
+  private void remember(Object receiver, int slot, LoxFunction method, Shape transition) {
+    if (size == POLYMORPHIC_LIMIT)
+      return;
+
+    receivers[size] = receiver;
+    slots[size] = slot;
+    methods[size] = method;
+    transitions[size] = transition;
+    size++;
+  }
+}
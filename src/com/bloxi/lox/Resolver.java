@@ -1,21 +1,25 @@
 package com.bloxi.lox;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 import java.util.HashMap;
 
+/**
+ * Resolves every local variable to a slot in the frame of the function that
+ * declares it. Functions only reach the locals of enclosing functions through
+ * upvalues, and the locals they capture are marked so the declaring frame
+ * boxes them; everything else stays a plain slot.
+ */
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private final Stack<Map<Symbol, Local>> scopes = new Stack<>();
+  /** Function whose frame the innermost scope is in; the script has one as well */
+  private Frame frame = new Frame(null, 0);
   private FunctionType currentFunction = FunctionType.NONE;
   private ClassType currentClass = ClassType.NONE;
   private boolean insideLoop = false;
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
-  }
-
   private enum FunctionType {
     NONE, FUNCTION, METHOD, INITIALIZER
   }
@@ -24,20 +28,67 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     NONE, CLASS, SUBCLASS
   }
 
+  /**
+   * A local variable in scope. Its uses in the declaring function are only
+   * given their Access when the scope ends, since an inner function further
+   * down may still capture it.
+   */
+  private static class Local {
+    final int slot;
+    /** Var, Function or Class declaring the variable, or null for parameters, 'this' and 'super' */
+    final Stmt declaration;
+    boolean defined = false;
+    boolean captured = false;
+    final List<Expr> uses = new ArrayList<>();
+
+    Local(int slot, Stmt declaration) {
+      this.slot = slot;
+      this.declaration = declaration;
+    }
+  }
+
+  /** Slots and upvalues of a function being resolved */
+  private static class Frame {
+    final Frame enclosing;
+    /** Index in scopes of the function's outermost scope */
+    final int firstScope;
+    int nextSlot = 0;
+    int size = 0;
+    /** Source of each upvalue, as Upvalue.capture reads them */
+    final List<Integer> upvalues = new ArrayList<>();
+
+    Frame(Frame enclosing, int firstScope) {
+      this.enclosing = enclosing;
+      this.firstScope = firstScope;
+    }
+  }
+
+  /**
+   * Resolves a top level script.
+   *
+   * @return number of slots the script's frame needs for the locals of its blocks
+   */
+  int resolveScript(List<Stmt> statements) {
+    resolve(statements);
+    return frame.size;
+  }
+
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
-    if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-      Lox.error(expr.name, "Can't read local variable in its own initializer.");
+    if (!scopes.isEmpty()) {
+      Local local = scopes.peek().get(expr.name.symbol);
+      if (local != null && !local.defined)
+        Lox.error(expr.name, "Can't read local variable in its own initializer.");
     }
 
-    resolveLocal(expr, expr.name);
+    resolveLocal(expr, expr.name.symbol);
     return null;
   }
 
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+    resolveLocal(expr, expr.name.symbol);
     return null;
   }
 
@@ -112,7 +163,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     if (currentClass == ClassType.NONE)
       Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
 
-    resolveLocal(expr, expr.keyword);
+    resolveLocal(expr, Symbol.THIS);
     return null;
   }
 
@@ -124,7 +175,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
     }
 
-    resolveLocal(expr, expr.keyword);
+    // reads of the superclass and the instance, resolved like any variable
+    expr.superclass = new Expr.Variable(expr.keyword);
+    expr.receiver = new Expr.This(new Token(TokenType.THIS, Symbol.THIS, expr.keyword.line));
+    resolveLocal(expr.superclass, Symbol.SUPER);
+    resolveLocal(expr.receiver, Symbol.THIS);
     return null;
   }
 
@@ -133,11 +188,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
 
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name, stmt);
     define(stmt.name);
 
     // A class can't inherit from itself
-    if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme))
+    if (stmt.superclass != null && stmt.name.symbol == stmt.superclass.name.symbol)
       Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
 
     if (stmt.superclass != null) {
@@ -145,25 +200,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       resolve(stmt.superclass);
     }
 
-    // Begin the scope for superclass
+    // Begin the scope for superclass. The methods that use it capture it,
+    // so it is always boxed.
     if (stmt.superclass != null) {
       beginScope();
-      scopes.peek().put("super", true);
+      stmt.superSlot = add(Symbol.SUPER, null).slot;
     }
 
-    beginScope();
-    scopes.peek().put("this", true);
-
     for (Stmt.Function method : stmt.methods) {
       FunctionType declaration = FunctionType.METHOD;
-      if (method.name.lexeme.equals("init"))
+      if (method.name.symbol == Symbol.INIT)
         declaration = FunctionType.INITIALIZER;
 
       resolveFunction(method, declaration);
     }
 
-    endScope();
-
     // End superclass scope
     if (stmt.superclass != null)
       endScope();
@@ -176,7 +227,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitFunctionStmt(Stmt.Function stmt) {
     // Defining the name before resolving the body
     // allows a function to call itself.
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name, stmt);
     define(stmt.name);
     resolveFunction(stmt, FunctionType.FUNCTION);
     return null;
@@ -192,7 +243,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name, stmt);
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -221,6 +272,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitImportStmt(Stmt.Import stmt) {
+    // a module defines globals, which an import in a block would suggest are local
+    if (!scopes.isEmpty() || currentFunction != FunctionType.NONE)
+      Lox.error(stmt.keyword, "Can only import at the top level.");
+    return null;
+  }
+
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     if (currentFunction == FunctionType.NONE)
@@ -230,6 +289,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       if (currentFunction == FunctionType.INITIALIZER)
         Lox.error(stmt.keyword, "Can't return a value from an initializer.");
       resolve(stmt.value);
+      // nothing is left to do in this function once the call returns
+      stmt.tailCall = stmt.value instanceof Expr.Call;
     }
 
     return null;
@@ -274,61 +335,186 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     expr.accept(this);
   }
 
-  /** Resolve the variable to a value */
-  private void resolveLocal(Expr expr, Token name) {
-    for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i);
+  /**
+   * Resolves a use of a variable. A local of the current function is given
+   * its Access when its scope ends; a local of an enclosing function becomes
+   * an upvalue; anything else is a global.
+   */
+  private void resolveLocal(Expr expr, Symbol name) {
+    for (int i = scopes.size() - 1; i >= frame.firstScope; i--) {
+      Local local = scopes.get(i).get(name);
+      if (local != null) {
+        local.uses.add(expr);
         return;
       }
     }
+
+    int upvalue = upvalue(frame, name);
+    if (upvalue >= 0)
+      resolved(expr, Access.UPVALUE, upvalue);
+  }
+
+  /**
+   * Finds a variable of an enclosing function and threads it through the
+   * upvalues of every function in between.
+   *
+   * @return index of the function's upvalue, or -1 when no enclosing function declares the name
+   */
+  private int upvalue(Frame function, Symbol name) {
+    Frame enclosing = function.enclosing;
+    if (enclosing == null)
+      return -1;
+
+    for (int i = function.firstScope - 1; i >= enclosing.firstScope; i--) {
+      Local local = scopes.get(i).get(name);
+      if (local != null) {
+        local.captured = true;
+        return addUpvalue(function, local.slot);
+      }
+    }
+
+    int upvalue = upvalue(enclosing, name);
+    if (upvalue < 0)
+      return -1;
+    return addUpvalue(function, -1 - upvalue);
+  }
+
+  private int addUpvalue(Frame function, int source) {
+    int index = function.upvalues.indexOf(source);
+    if (index >= 0)
+      return index;
+
+    function.upvalues.add(source);
+    return function.upvalues.size() - 1;
+  }
+
+  private static void resolved(Expr expr, byte access, int slot) {
+    if (expr instanceof Expr.Variable) {
+      ((Expr.Variable) expr).access = access;
+      ((Expr.Variable) expr).slot = slot;
+    } else if (expr instanceof Expr.Assign) {
+      ((Expr.Assign) expr).access = access;
+      ((Expr.Assign) expr).slot = slot;
+    } else {
+      ((Expr.This) expr).access = access;
+      ((Expr.This) expr).slot = slot;
+    }
   }
 
   /** Marks the start of a new scope by pushing a Hashmap to the scopes stack */
   private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+    scopes.push(new HashMap<Symbol, Local>());
   }
 
-  /** Marks the end of a scope by popping one off the stack */
+  /**
+   * Marks the end of a scope by popping one off the stack. Now that it is
+   * known which of its variables are captured, their uses and declarations
+   * are told whether the slot holds the value or its Upvalue. The slots are
+   * free for the next scope.
+   */
   private void endScope() {
-    scopes.pop();
+    Map<Symbol, Local> scope = scopes.pop();
+
+    for (Local local : scope.values()) {
+      byte access = local.captured ? Access.BOXED : Access.LOCAL;
+      for (Expr use : local.uses) {
+        resolved(use, access, local.slot);
+      }
+
+      if (local.declaration instanceof Stmt.Var)
+        ((Stmt.Var) local.declaration).captured = local.captured;
+      else if (local.declaration instanceof Stmt.Function)
+        ((Stmt.Function) local.declaration).captured = local.captured;
+      else if (local.declaration instanceof Stmt.Class)
+        ((Stmt.Class) local.declaration).captured = local.captured;
+    }
+
+    frame.nextSlot -= scope.size();
+  }
+
+  /**
+   * Marks a variable as declared
+   *
+   * @return slot of the variable, or -1 for a global
+   */
+  private int declare(Token name) {
+    return declare(name, null);
   }
 
-  /** Marks a variable as declared */
-  private void declare(Token name) {
+  private int declare(Token name, Stmt declaration) {
     if (scopes.isEmpty())
-      return;
+      return -1;
 
-    Map<String, Boolean> scope = scopes.peek();
+    Map<Symbol, Local> scope = scopes.peek();
 
-    if (scope.containsKey(name.lexeme)) {
+    if (scope.containsKey(name.symbol)) {
       Lox.error(name, "A variable with this name already exists in this scope.");
+      return scope.get(name.symbol).slot;
     }
 
-    scope.put(name.lexeme, false);
+    return add(name.symbol, declaration).slot;
+  }
+
+  /** Adds a variable to the innermost scope, in the next free slot of the frame */
+  private Local add(Symbol name, Stmt declaration) {
+    Local local = new Local(frame.nextSlot++, declaration);
+    frame.size = Math.max(frame.size, frame.nextSlot);
+    scopes.peek().put(name, local);
+    return local;
   }
 
   /** Marks a variable as defined */
   private void define(Token name) {
     if (scopes.isEmpty())
       return;
-    scopes.peek().put(name.lexeme, true);
+    scopes.peek().get(name.symbol).defined = true;
   }
 
   /** Resolves the variables in a function */
   private void resolveFunction(Stmt.Function function, FunctionType type) {
     FunctionType enclosingFunction = currentFunction;
     currentFunction = type;
+    // a loop around the declaration is not one the body can break out of
+    boolean enclosingInsideLoop = insideLoop;
+    insideLoop = false;
+    frame = new Frame(frame, scopes.size());
 
     beginScope();
 
+    // a method's frame has the instance in slot 0, before the parameters
+    List<Local> params = new ArrayList<>();
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER)
+      params.add(add(Symbol.THIS, null));
+
     for (Token param : function.params) {
       declare(param);
       define(param);
+      params.add(scopes.peek().get(param.symbol));
     }
 
     resolve(function.body);
+
+    List<Integer> boxedParams = new ArrayList<>();
+    for (Local param : params) {
+      if (param.captured)
+        boxedParams.add(param.slot);
+    }
+
     endScope();
+    function.slotCount = frame.size;
+    function.upvalues = toArray(frame.upvalues);
+    function.boxedParams = toArray(boxedParams);
+
+    frame = frame.enclosing;
     currentFunction = enclosingFunction;
+    insideLoop = enclosingInsideLoop;
+  }
+
+  private static int[] toArray(List<Integer> values) {
+    int[] array = new int[values.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = values.get(i);
+    }
+    return array;
   }
 }
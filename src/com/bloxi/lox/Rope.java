@@ -0,0 +1,106 @@
+package com.bloxi.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * String made by '+' that keeps its two halves instead of copying them, so
+ * building a string piece by piece in a loop copies every character once
+ * rather than once per iteration. It is flattened the first time its
+ * characters are needed, which is when it is printed, compared or hashed, and
+ * is a Lox string everywhere a java.lang.String is.
+ */
+final class Rope implements CharSequence {
+  /** Concatenations shorter than this are copied, which is cheaper than keeping the halves */
+  private static final int MIN_LENGTH = 64;
+
+  /** String or Rope on each side, until the rope is flattened */
+  private Object left;
+  private Object right;
+  private final int length;
+  private String flat = null;
+
+  private Rope(Object left, Object right, int length) {
+    this.left = left;
+    this.right = right;
+    this.length = length;
+  }
+
+  /** Applies '+' to two values at least one of which is a string */
+  static Object concat(Object lhs, Object rhs) {
+    Object left = Interpreter.isString(lhs) ? lhs : Interpreter.stringify(lhs);
+    Object right = Interpreter.isString(rhs) ? rhs : Interpreter.stringify(rhs);
+
+    int length = length(left) + length(right);
+    // only ropes reach the minimum, so both sides are Strings here
+    if (length < MIN_LENGTH)
+      return (String) left + (String) right;
+    return new Rope(left, right, length);
+  }
+
+  private static int length(Object string) {
+    return string instanceof String ? ((String) string).length() : ((Rope) string).length;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return toString().charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    if (flat != null)
+      return flat;
+
+    // a rope built in a loop is as deep as the loop ran, so it is walked
+    // with a stack of its own rather than by recursion
+    StringBuilder builder = new StringBuilder(length);
+    Deque<Object> pending = new ArrayDeque<>();
+    pending.push(this);
+    while (!pending.isEmpty()) {
+      Object part = pending.pop();
+      if (part instanceof String) {
+        builder.append((String) part);
+        continue;
+      }
+
+      Rope rope = (Rope) part;
+      if (rope.flat != null) {
+        builder.append(rope.flat);
+      } else {
+        pending.push(rope.right);
+        pending.push(rope.left);
+      }
+    }
+
+    flat = builder.toString();
+    left = null;
+    right = null;
+    return flat;
+  }
+
+  /** A rope is equal to a string or rope with the same characters */
+  @Override
+  public boolean equals(Object object) {
+    if (object == this)
+      return true;
+    if (!(object instanceof String || object instanceof Rope))
+      return false;
+    return length == ((CharSequence) object).length() && toString().equals(object.toString());
+  }
+
+  @Override
+  public int hashCode() {
+    return toString().hashCode();
+  }
+}
@@ -1,56 +1,41 @@
 package com.bloxi.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
+/**
+ * Splits source into tokens, a batch at a time as the Parser reads on. Tokens
+ * go into a TokenBuffer as their type and position, so scanning copies nothing
+ * out of the source. The source can be any CharSequence, such as a view of a
+ * mapped file.
+ */
 class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  private final CharSequence source;
+  private final TokenBuffer tokens;
   private int start = 0;
   private int current = 0;
   private int line = 1;
+  /** Whether the EOF token has been added */
+  private boolean done = false;
 
-  /** This hashmap maps strings to token types */
-  private static final Map<String, TokenType> keywords;
-  static {
-    keywords = new HashMap<>();
-    keywords.put("and", TokenType.AND);
-    keywords.put("class", TokenType.CLASS);
-    keywords.put("else", TokenType.ELSE);
-    keywords.put("false", TokenType.FALSE);
-    keywords.put("for", TokenType.FOR);
-    keywords.put("fun", TokenType.FUN);
-    keywords.put("if", TokenType.IF);
-    keywords.put("nil", TokenType.NIL);
-    keywords.put("or", TokenType.OR);
-    keywords.put("print", TokenType.PRINT);
-    keywords.put("return", TokenType.RETURN);
-    keywords.put("super", TokenType.SUPER);
-    keywords.put("this", TokenType.THIS);
-    keywords.put("true", TokenType.TRUE);
-    keywords.put("var", TokenType.VAR);
-    keywords.put("while", TokenType.WHILE);
-    keywords.put("break", TokenType.BREAK);
-  }
-
-  Scanner(String source) {
+  Scanner(CharSequence source, TokenBuffer tokens) {
     this.source = source;
+    this.tokens = tokens;
   }
 
   /**
-   * Scans all tokens in source until EOF
+   * Scans tokens into the buffer until it is full, skipping whitespace,
+   * comments and characters that are errors. An EOF token follows the last.
    */
-  List<Token> scanTokens() {
-    while (!isAtEnd()) {
+  void scan() {
+    while (!done && !tokens.isFull()) {
+      if (isAtEnd()) {
+        tokens.add(TokenType.EOF, current, 0, line);
+        done = true;
+        return;
+      }
+
       // At the beginning of the next lexeme
       start = current;
       scanToken();
     }
-
-    tokens.add(new Token(TokenType.EOF, "", null, line));
-    return tokens;
   }
 
   /**
@@ -145,30 +130,25 @@ class Scanner {
           // including reserved words
           identifier();
         } else {
-          Lox.error(line, String.format("Unexpected character: %c", c));
+          tokens.error(line, String.format("Unexpected character: %c", c));
         }
         break;
     }
   }
 
   /**
-   * Adds a token without a literal to tokens list.
+   * Adds the token from start to current to the buffer. Its literal is worked
+   * out from the source when the Token is made.
    *
    * @param type type of token to add
    */
   private void addToken(TokenType type) {
-    addToken(type, null);
+    tokens.add(type, start, current - start, line);
   }
 
-  /**
-   * Adds a token to the tokens list
-   *
-   * @param type    type of the token
-   * @param literal value of the token
-   */
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+  /** Copies a range of the source */
+  private String text(int from, int to) {
+    return source.subSequence(from, to).toString();
   }
 
   /**
@@ -231,7 +211,7 @@ class Scanner {
    * @param c char to check
    * @return true if char represents a digit
    */
-  private boolean isDigit(char c) {
+  private static boolean isDigit(char c) {
     return c >= '0' && c <= '9';
   }
 
@@ -241,7 +221,7 @@ class Scanner {
    * @param c char to check
    * @return true if c is in the alphabet or is "_"
    */
-  private boolean isAlpha(char c) {
+  static boolean isAlpha(char c) {
     return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
   }
 
@@ -251,7 +231,7 @@ class Scanner {
    * @param c char to check
    * @return true if c is alphanumeric of "_"
    */
-  private boolean isAlphaNumberic(char c) {
+  private static boolean isAlphaNumberic(char c) {
     return isAlpha(c) || isDigit(c);
   }
 
@@ -268,16 +248,14 @@ class Scanner {
     }
 
     if (isAtEnd()) {
-      Lox.error(line, String.format("Unterminated string: %s", source.substring(start, current)));
+      tokens.error(line, String.format("Unterminated string: %s", text(start, current)));
       return;
     }
 
     // Consume the closing ".
     advance();
 
-    // Trim the surrounding quotes
-    String value = source.substring(start + 1, current - 1);
-    addToken(TokenType.STRING, value);
+    addToken(TokenType.STRING);
   }
 
   /**
@@ -299,7 +277,7 @@ class Scanner {
         advance();
     }
 
-    addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+    addToken(TokenType.NUMBER);
   }
 
   /**
@@ -309,13 +287,89 @@ class Scanner {
     while (isAlphaNumberic(peek()))
       advance();
 
-    // If the scanned identifier is a keyword, set its type.
-    // Otherwise, it's IDENTIFIER, meaning its a user-defined variable.
-    String text = source.substring(start, current);
-    TokenType type = keywords.get(text);
-    if (type == null)
-      type = TokenType.IDENTIFIER;
-    addToken(type);
+    addToken(keyword());
+  }
+
+  /**
+   * Recognizes a reserved word by its first letters, as a trie would, without
+   * copying or hashing the identifier.
+   *
+   * @return the keyword's type, or IDENTIFIER if it is a user-defined name
+   */
+  private TokenType keyword() {
+    switch (source.charAt(start)) {
+      case 'a':
+        return rest(1, "nd", TokenType.AND);
+      case 'b':
+        return rest(1, "reak", TokenType.BREAK);
+      case 'c':
+        return rest(1, "lass", TokenType.CLASS);
+      case 'e':
+        return rest(1, "lse", TokenType.ELSE);
+      case 'f':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'a':
+              return rest(2, "lse", TokenType.FALSE);
+            case 'o':
+              return rest(2, "r", TokenType.FOR);
+            case 'u':
+              return rest(2, "n", TokenType.FUN);
+          }
+        }
+        break;
+      case 'i':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'f':
+              return rest(2, "", TokenType.IF);
+            case 'm':
+              return rest(2, "port", TokenType.IMPORT);
+          }
+        }
+        break;
+      case 'n':
+        return rest(1, "il", TokenType.NIL);
+      case 'o':
+        return rest(1, "r", TokenType.OR);
+      case 'p':
+        return rest(1, "rint", TokenType.PRINT);
+      case 'r':
+        return rest(1, "eturn", TokenType.RETURN);
+      case 's':
+        return rest(1, "uper", TokenType.SUPER);
+      case 't':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'h':
+              return rest(2, "is", TokenType.THIS);
+            case 'r':
+              return rest(2, "ue", TokenType.TRUE);
+          }
+        }
+        break;
+      case 'v':
+        return rest(1, "ar", TokenType.VAR);
+      case 'w':
+        return rest(1, "hile", TokenType.WHILE);
+    }
+    return TokenType.IDENTIFIER;
+  }
+
+  /**
+   * Checks whether the identifier ends in the rest of a keyword.
+   *
+   * @param offset index in the identifier where rest starts
+   * @return type if it does, IDENTIFIER if not
+   */
+  private TokenType rest(int offset, String rest, TokenType type) {
+    if (current - start != offset + rest.length())
+      return TokenType.IDENTIFIER;
+    for (int i = 0; i < rest.length(); i++) {
+      if (source.charAt(start + offset + i) != rest.charAt(i))
+        return TokenType.IDENTIFIER;
+    }
+    return type;
   }
 
   /**
@@ -331,7 +385,7 @@ class Scanner {
 
     // If EOF is found first, its an error
     if (isAtEnd()) {
-      Lox.error(line, String.format("Unterminated block comment: %s", source.substring(start, current)));
+      tokens.error(line, String.format("Unterminated block comment: %s", text(start, current)));
       return;
     }
 
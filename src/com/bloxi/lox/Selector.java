@@ -0,0 +1,23 @@
+package com.bloxi.lox;
+
+/**
+ * Numbers method names with small integer ids, so a class can keep its
+ * methods in an array indexed by id. The id is stored on the name's Symbol.
+ * Only names classes declare methods with are numbered, so the tables grow
+ * with the methods in the program rather than with every property name.
+ */
+final class Selector {
+  private static int count = 0;
+
+  static final int INIT = of(Symbol.INIT);
+
+  private Selector() {
+  }
+
+  /** Returns the id of a name, giving it the next free id if it has none */
+  static synchronized int of(Symbol name) {
+    if (name.selector < 0)
+      name.selector = count++;
+    return name.selector;
+  }
+}
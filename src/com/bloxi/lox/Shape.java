@@ -0,0 +1,66 @@
+package com.bloxi.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hidden class of a LoxInstance, saying which slot each of its fields is
+ * stored in. Every class has a root shape without fields, and adding a field
+ * follows a transition to a shape with one more slot, so instances that gained
+ * the same fields in the same order share one Shape. Shapes also belong to a
+ * single class, which lets inline caches check both with one comparison.
+ */
+class Shape {
+  private static final Symbol[] NO_FIELDS = new Symbol[0];
+
+  final LoxClass loxClass;
+  /** Names of the fields, each at the index of its slot */
+  private final Symbol[] fields;
+  private final Map<Symbol, Shape> transitions = new HashMap<>();
+
+  Shape(LoxClass loxClass) {
+    this(loxClass, NO_FIELDS);
+  }
+
+  private Shape(LoxClass loxClass, Symbol[] fields) {
+    this.loxClass = loxClass;
+    this.fields = fields;
+  }
+
+  /**
+   * Returns the slot of a field, or -1 when the shape does not have it.
+   * Instances have few fields, and symbols compare by identity, so a scan is
+   * cheaper than hashing.
+   */
+  int slotOf(Symbol name) {
+    for (int slot = 0; slot < fields.length; slot++) {
+      if (fields[slot] == name)
+        return slot;
+    }
+    return -1;
+  }
+
+  /** Number of fields, which is also the slot a new field is stored in */
+  int size() {
+    return fields.length;
+  }
+
+  /** Returns the name of the field stored in a slot */
+  Symbol field(int slot) {
+    return fields[slot];
+  }
+
+  /** Returns the shape after adding a field this shape does not have */
+  Shape withField(Symbol name) {
+    Shape next = transitions.get(name);
+    if (next == null) {
+      Symbol[] nextFields = Arrays.copyOf(fields, fields.length + 1);
+      nextFields[fields.length] = name;
+      next = new Shape(loxClass, nextFields);
+      transitions.put(name, next);
+      loxClass.fieldCapacity = Math.max(loxClass.fieldCapacity, next.size());
+    }
+    return next;
+  }
+}
@@ -0,0 +1,416 @@
+package com.bloxi.lox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * File holding the global variables of a script as they were once its top
+ * level had run. A script that keeps its setup at the top level and its work
+ * in a 'main' function runs the setup once; later runs restore the globals
+ * from here and go straight to main. Functions are stored as a reference to
+ * their declaration plus the variables they captured, so the script and every
+ * file it imports must be unchanged for the snapshot to be used. Objects
+ * reachable from several places, such as an instance held by two globals or a
+ * variable captured by two closures, are restored as one object.
+ */
+final class Snapshot {
+  private static final int MAGIC = 0x426c7853;
+  /** Changed whenever the format changes */
+  private static final int VERSION = 1;
+
+  // value tags
+  private static final byte NIL = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+  private static final byte NUMBER = 3;
+  private static final byte STRING = 4;
+  /** An object written earlier, by its index */
+  private static final byte REFERENCE = 5;
+  /** A native function, by its name */
+  private static final byte NATIVE = 6;
+  private static final byte FUNCTION = 7;
+  private static final byte CLASS = 8;
+  private static final byte INSTANCE = 9;
+  private static final byte UPVALUE = 10;
+
+  private final Path file;
+
+  Snapshot(Path file) {
+    this.file = file;
+  }
+
+  /**
+   * Defines the globals stored in the snapshot. Nothing is defined unless the
+   * whole snapshot could be read.
+   *
+   * @param script resolved script, with its imports loaded
+   * @param bodies makes the body the engine runs a function with
+   * @return false when there is no snapshot of this script to restore
+   */
+  boolean restore(Module script, Environment globals, Function<Stmt.Function, LoxFunction.Body> bodies) {
+    if (!Files.exists(file))
+      return false;
+
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)));
+      List<Module> modules = modules(script);
+      if (in.readInt() != MAGIC || in.readInt() != VERSION || !header(modules).equals(read(in)))
+        return false;
+
+      Reader reader = new Reader(in, declarations(modules), bodies);
+      int count = in.readInt();
+      List<Symbol> names = new ArrayList<>();
+      List<Object> values = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        names.add(Symbol.intern(read(in)));
+        values.add(reader.value());
+      }
+      reader.finish();
+
+      for (int i = 0; i < count; i++) {
+        globals.define(names.get(i), values.get(i));
+      }
+      return true;
+    } catch (IOException | RuntimeException error) {
+      // written for another version of the script, or cut short
+      return false;
+    }
+  }
+
+  /**
+   * Stores the globals. The snapshot is written to a temporary file and moved
+   * into place, so a run never reads one half written. Failing to write only
+   * costs the next run its top level.
+   */
+  void save(Module script, Environment globals) {
+    try {
+      List<Module> modules = modules(script);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      write(out, header(modules));
+
+      Writer writer = new Writer(out, declarations(modules));
+      List<Global> cells = globals.defined();
+      out.writeInt(cells.size());
+      for (Global cell : cells) {
+        write(out, cell.name.name);
+        writer.value(cell.value);
+      }
+      writer.finish();
+
+      Path directory = file.toAbsolutePath().getParent();
+      Files.createDirectories(directory);
+      ProgramCache.replace(directory.resolve(file.getFileName()), bytes.toByteArray());
+    } catch (IOException error) {
+      // running does not depend on the snapshot
+    } catch (IllegalArgumentException error) {
+      // a value the format has no tag for
+    }
+  }
+
+  /** Writes a string of any length, where writeUTF stops at 64K */
+  private static void write(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String read(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Returns the script followed by the modules it imports, in the order they are first imported */
+  private static List<Module> modules(Module script) {
+    List<Module> modules = new ArrayList<>();
+    modules.add(script);
+    // imports are only allowed at the top level
+    for (int i = 0; i < modules.size(); i++) {
+      for (Stmt statement : modules.get(i).statements) {
+        if (statement instanceof Stmt.Import && !modules.contains(((Stmt.Import) statement).module))
+          modules.add(((Stmt.Import) statement).module);
+      }
+    }
+    return modules;
+  }
+
+  /** Identifies the files a snapshot was taken from by their paths and contents */
+  private static String header(List<Module> modules) throws IOException {
+    StringBuilder header = new StringBuilder(Lox.optimize ? "optimized" : "plain");
+    for (Module module : modules) {
+      header.append('\n').append(module.path).append(' ').append(ProgramCache.key(module.path));
+    }
+    return header.toString();
+  }
+
+  /** Lists every function declaration of the modules, which functions are stored by index into */
+  private static List<Stmt.Function> declarations(List<Module> modules) {
+    List<Stmt.Function> declarations = new ArrayList<>();
+    for (Module module : modules) {
+      collect(module.statements, declarations);
+    }
+    return declarations;
+  }
+
+  private static void collect(List<? extends Stmt> statements, List<Stmt.Function> declarations) {
+    for (Stmt statement : statements) {
+      collect(statement, declarations);
+    }
+  }
+
+  private static void collect(Stmt statement, List<Stmt.Function> declarations) {
+    if (statement instanceof Stmt.Block) {
+      collect(((Stmt.Block) statement).statements, declarations);
+    } else if (statement instanceof Stmt.If) {
+      Stmt.If stmt = (Stmt.If) statement;
+      collect(stmt.thenBranch, declarations);
+      if (stmt.elseBranch != null)
+        collect(stmt.elseBranch, declarations);
+    } else if (statement instanceof Stmt.While) {
+      collect(((Stmt.While) statement).body, declarations);
+    } else if (statement instanceof Stmt.Function) {
+      declarations.add((Stmt.Function) statement);
+      collect(((Stmt.Function) statement).body, declarations);
+    } else if (statement instanceof Stmt.Class) {
+      collect(((Stmt.Class) statement).methods, declarations);
+    }
+  }
+
+  /**
+   * Writes values depth first. Upvalues and instances can be part of a cycle,
+   * so they are written as a placeholder and their contents are written after
+   * all the globals, once every object that can refer back to them exists.
+   */
+  private static final class Writer {
+    private final DataOutputStream out;
+    private final Map<Stmt.Function, Integer> declarations = new IdentityHashMap<>();
+    /** Index of every object written so far */
+    private final Map<Object, Integer> objects = new IdentityHashMap<>();
+    /** Upvalues and instances whose contents are still to be written */
+    private final List<Object> deferred = new ArrayList<>();
+
+    Writer(DataOutputStream out, List<Stmt.Function> declarations) {
+      this.out = out;
+      for (int i = 0; i < declarations.size(); i++) {
+        this.declarations.put(declarations.get(i), i);
+      }
+    }
+
+    void value(Object value) throws IOException {
+      if (value == null) {
+        out.writeByte(NIL);
+      } else if (value instanceof Boolean) {
+        out.writeByte((boolean) value ? TRUE : FALSE);
+      } else if (value instanceof Double) {
+        out.writeByte(NUMBER);
+        out.writeDouble((double) value);
+      } else if (Interpreter.isString(value)) {
+        // ropes are flattened
+        out.writeByte(STRING);
+        write(out, value.toString());
+      } else if (objects.containsKey(value)) {
+        out.writeByte(REFERENCE);
+        out.writeInt(objects.get(value));
+      } else if (value instanceof Natives.Native) {
+        out.writeByte(NATIVE);
+        write(out, ((Natives.Native) value).name);
+      } else if (value instanceof LoxFunction) {
+        function((LoxFunction) value);
+      } else if (value instanceof LoxClass) {
+        loxClass((LoxClass) value);
+      } else if (value instanceof LoxInstance) {
+        out.writeByte(INSTANCE);
+        value(((LoxInstance) value).loxClass);
+        defer(value);
+      } else if (value instanceof Upvalue) {
+        out.writeByte(UPVALUE);
+        defer(value);
+      } else {
+        throw new IllegalArgumentException("Can't store " + value + " in a snapshot.");
+      }
+    }
+
+    private void function(LoxFunction function) throws IOException {
+      Integer declaration = declarations.get(function.declaration);
+      if (declaration == null)
+        throw new IllegalArgumentException("Can't find the declaration of " + function + ".");
+
+      out.writeByte(FUNCTION);
+      out.writeInt(declaration);
+      out.writeBoolean(function.isInitializer);
+      out.writeInt(function.upvalues.length);
+      for (Upvalue upvalue : function.upvalues) {
+        value(upvalue);
+      }
+      value(function.receiver);
+      objects.put(function, objects.size());
+    }
+
+    private void loxClass(LoxClass loxClass) throws IOException {
+      out.writeByte(CLASS);
+      write(out, loxClass.name);
+      value(loxClass.superclass);
+      Map<Symbol, LoxFunction> methods = loxClass.declaredMethods();
+      out.writeInt(methods.size());
+      for (Map.Entry<Symbol, LoxFunction> method : methods.entrySet()) {
+        write(out, method.getKey().name);
+        value(method.getValue());
+      }
+      objects.put(loxClass, objects.size());
+    }
+
+    private void defer(Object value) {
+      objects.put(value, objects.size());
+      deferred.add(value);
+    }
+
+    /** Writes the contents of the upvalues and instances, which may defer more */
+    void finish() throws IOException {
+      for (int i = 0; i < deferred.size(); i++) {
+        Object object = deferred.get(i);
+        if (object instanceof Upvalue) {
+          value(((Upvalue) object).value);
+          continue;
+        }
+
+        LoxInstance instance = (LoxInstance) object;
+        out.writeInt(instance.shape.size());
+        for (int slot = 0; slot < instance.shape.size(); slot++) {
+          write(out, instance.shape.field(slot).name);
+          value(instance.slots[slot]);
+        }
+      }
+    }
+  }
+
+  /** Reads values in the order the Writer wrote them */
+  private static final class Reader {
+    private final DataInputStream in;
+    private final List<Stmt.Function> declarations;
+    private final Function<Stmt.Function, LoxFunction.Body> bodies;
+    /** Bodies already made, shared by every closure of a declaration */
+    private final Map<Stmt.Function, LoxFunction.Body> made = new IdentityHashMap<>();
+    private final List<Object> objects = new ArrayList<>();
+    private final List<Object> deferred = new ArrayList<>();
+
+    Reader(DataInputStream in, List<Stmt.Function> declarations, Function<Stmt.Function, LoxFunction.Body> bodies) {
+      this.in = in;
+      this.declarations = declarations;
+      this.bodies = bodies;
+    }
+
+    Object value() throws IOException {
+      byte tag = in.readByte();
+      switch (tag) {
+        case NIL:
+          return null;
+        case TRUE:
+          return true;
+        case FALSE:
+          return false;
+        case NUMBER:
+          return in.readDouble();
+        case STRING:
+          return read(in);
+        case REFERENCE:
+          return objects.get(in.readInt());
+        case NATIVE:
+          return Natives.lookup(Symbol.intern(read(in)));
+        case FUNCTION:
+          return function();
+        case CLASS:
+          return loxClass();
+        case INSTANCE: {
+          LoxInstance instance = new LoxInstance((LoxClass) value());
+          objects.add(instance);
+          deferred.add(instance);
+          return instance;
+        }
+        case UPVALUE: {
+          Upvalue upvalue = new Upvalue(null);
+          objects.add(upvalue);
+          deferred.add(upvalue);
+          return upvalue;
+        }
+        default:
+          throw new IllegalStateException("Unknown value tag " + tag + ".");
+      }
+    }
+
+    private LoxFunction function() throws IOException {
+      Stmt.Function declaration = declarations.get(in.readInt());
+      boolean isInitializer = in.readBoolean();
+      Upvalue[] upvalues = Environment.NO_UPVALUES;
+      int count = in.readInt();
+      if (count > 0) {
+        upvalues = new Upvalue[count];
+        for (int i = 0; i < count; i++) {
+          upvalues[i] = (Upvalue) value();
+        }
+      }
+      LoxInstance receiver = (LoxInstance) value();
+
+      LoxFunction.Body body = made.get(declaration);
+      if (body == null && !made.containsKey(declaration)) {
+        body = bodies.apply(declaration);
+        made.put(declaration, body);
+      }
+
+      LoxFunction function = new LoxFunction(declaration, upvalues, isInitializer, body);
+      if (receiver != null)
+        function = function.bind(receiver);
+      objects.add(function);
+      return function;
+    }
+
+    private LoxClass loxClass() throws IOException {
+      String name = read(in);
+      LoxClass superclass = (LoxClass) value();
+      Map<Symbol, LoxFunction> methods = new HashMap<>();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Symbol method = Symbol.intern(read(in));
+        methods.put(method, (LoxFunction) value());
+      }
+
+      LoxClass loxClass = new LoxClass(name, superclass, methods);
+      objects.add(loxClass);
+      return loxClass;
+    }
+
+    /** Reads the contents of the upvalues and instances */
+    void finish() throws IOException {
+      for (int i = 0; i < deferred.size(); i++) {
+        Object object = deferred.get(i);
+        if (object instanceof Upvalue) {
+          ((Upvalue) object).value = value();
+          continue;
+        }
+
+        LoxInstance instance = (LoxInstance) object;
+        int count = in.readInt();
+        for (int field = 0; field < count; field++) {
+          Symbol name = Symbol.intern(read(in));
+          Object value = value();
+          instance.transition(instance.shape.withField(name));
+          instance.slots[field] = value;
+        }
+      }
+    }
+  }
+}
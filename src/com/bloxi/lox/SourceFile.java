@@ -0,0 +1,68 @@
+package com.bloxi.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Source of a script file for the Scanner. The file is memory-mapped rather
+ * than read into the heap. A file that is all ASCII, as scripts almost always
+ * are, is scanned straight from the mapping one byte per char; any other is
+ * decoded into a CharBuffer.
+ */
+final class SourceFile implements CharSequence {
+  private final ByteBuffer bytes;
+  /** Range of the mapping this sequence covers */
+  private final int offset;
+  private final int length;
+
+  private SourceFile(ByteBuffer bytes, int offset, int length) {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  static CharSequence read(Path path) throws IOException {
+    MappedByteBuffer mapped;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      // the mapping stays valid after the channel is closed
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    for (int i = 0; i < mapped.limit(); i++) {
+      if (mapped.get(i) < 0)
+        return Charset.defaultCharset().decode(mapped);
+    }
+    return new SourceFile(mapped, 0, mapped.limit());
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return (char) bytes.get(offset + index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return new SourceFile(bytes, offset + start, end - start);
+  }
+
+  @Override
+  public String toString() {
+    byte[] text = new byte[length];
+    ByteBuffer view = bytes.duplicate();
+    view.position(offset);
+    view.get(text);
+    // ASCII is a subset of Latin-1, which Strings copy without decoding
+    return new String(text, StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,81 @@
+package com.bloxi.lox;
+
+/**
+ * Type-specialized variants that Unary, Binary and Logical nodes rewrite
+ * themselves to. A node starts uninitialized, picks a variant from the
+ * operand types of its first run, and falls back to the generic code for
+ * good when the variant's type guard fails.
+ */
+final class Specialization {
+  private Specialization() {
+  }
+
+  /** Not run yet */
+  static final byte UNINITIALIZED = 0;
+  /** No variant fits, or a guard has failed */
+  static final byte GENERIC = 1;
+
+  // binary operators on two numbers, and '+' on two strings
+  static final byte ADD_NUMBERS = 2;
+  static final byte ADD_STRINGS = 3;
+  static final byte SUBTRACT_NUMBERS = 4;
+  static final byte MULTIPLY_NUMBERS = 5;
+  static final byte DIVIDE_NUMBERS = 6;
+  static final byte GREATER_NUMBERS = 7;
+  static final byte GREATER_EQUAL_NUMBERS = 8;
+  static final byte LESS_NUMBERS = 9;
+  static final byte LESS_EQUAL_NUMBERS = 10;
+
+  // unary operators
+  static final byte NEGATE_NUMBER = 11;
+  static final byte NOT_BOOLEAN = 12;
+
+  /** 'and' and 'or' with a boolean left operand */
+  static final byte LOGICAL_BOOLEAN = 13;
+
+  /** Whether a Binary variant produces a number */
+  static boolean isArithmetic(byte specialization) {
+    return specialization == ADD_NUMBERS || specialization == SUBTRACT_NUMBERS
+        || specialization == MULTIPLY_NUMBERS || specialization == DIVIDE_NUMBERS;
+  }
+
+  static byte binary(TokenType operator, Object lhs, Object rhs) {
+    if (Interpreter.isString(lhs) && Interpreter.isString(rhs))
+      return operator == TokenType.PLUS ? ADD_STRINGS : GENERIC;
+    if (!(lhs instanceof Double && rhs instanceof Double))
+      return GENERIC;
+
+    switch (operator) {
+      case PLUS:
+        return ADD_NUMBERS;
+      case MINUS:
+        return SUBTRACT_NUMBERS;
+      case STAR:
+        return MULTIPLY_NUMBERS;
+      case SLASH:
+        return DIVIDE_NUMBERS;
+      case GREATER:
+        return GREATER_NUMBERS;
+      case GREATER_EQUAL:
+        return GREATER_EQUAL_NUMBERS;
+      case LESS:
+        return LESS_NUMBERS;
+      case LESS_EQUAL:
+        return LESS_EQUAL_NUMBERS;
+      default:
+        return GENERIC;
+    }
+  }
+
+  static byte unary(TokenType operator, Object rhs) {
+    if (operator == TokenType.MINUS && rhs instanceof Double)
+      return NEGATE_NUMBER;
+    if (operator == TokenType.BANG && rhs instanceof Boolean)
+      return NOT_BOOLEAN;
+    return GENERIC;
+  }
+
+  static byte logical(Object lhs) {
+    return lhs instanceof Boolean ? LOGICAL_BOOLEAN : GENERIC;
+  }
+}
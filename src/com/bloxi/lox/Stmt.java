@@ -14,6 +14,7 @@ abstract class Stmt {
     R visitFunctionStmt (Function stmt);
     R visitReturnStmt (Return stmt);
     R visitClassStmt (Class stmt);
+    R visitImportStmt (Import stmt);
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -60,6 +61,9 @@ abstract class Stmt {
   static class Var extends Stmt {
     final Token name;
     final Expr initializer;
+    // runtime state, not part of the tree
+    int slot = -1;
+    boolean captured;
 
     Var(Token name, Expr initializer) {
       this.name = name;
@@ -92,6 +96,8 @@ abstract class Stmt {
   static class While extends Stmt {
     final Expr condition;
     final Stmt body;
+    // runtime state, not part of the tree
+    CountedLoop counted;
 
     While(Expr condition, Stmt body) {
       this.condition = condition;
@@ -121,6 +127,12 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    // runtime state, not part of the tree
+    int slot = -1;
+    boolean captured;
+    int slotCount;
+    int[] upvalues;
+    int[] boxedParams;
 
     Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
@@ -137,6 +149,8 @@ abstract class Stmt {
   static class Return extends Stmt {
     final Token keyword;
     final Expr value;
+    // runtime state, not part of the tree
+    boolean tailCall;
 
     Return(Token keyword, Expr value) {
       this.keyword = keyword;
@@ -153,6 +167,10 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+    // runtime state, not part of the tree
+    int slot = -1;
+    boolean captured;
+    int superSlot = -1;
 
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
       this.name = name;
@@ -165,4 +183,21 @@ abstract class Stmt {
       return visitor.visitClassStmt(this);
     }
   }
+
+  static class Import extends Stmt {
+    final Token keyword;
+    final Token path;
+    // runtime state, not part of the tree
+    Module module;
+
+    Import(Token keyword, Token path) {
+      this.keyword = keyword;
+      this.path = path;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+  }
 }
\ No newline at end of file
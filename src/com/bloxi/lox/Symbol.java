@@ -0,0 +1,93 @@
+package com.bloxi.lox;
+
+/**
+ * Interned name of a variable, field or method. The Scanner makes one Symbol
+ * per distinct name, so names compare by identity, and each gets a small id
+ * that tables can be indexed by instead of hashing the string.
+ */
+final class Symbol {
+  private static Symbol[] table = new Symbol[256];
+  private static int count = 0;
+
+  static final Symbol THIS = intern("this");
+  static final Symbol SUPER = intern("super");
+  static final Symbol INIT = intern("init");
+
+  final String name;
+  final int id;
+  private final int hash;
+  /** Selector id, given the first time a class declares a method with the name */
+  int selector = -1;
+
+  private Symbol(String name, int id, int hash) {
+    this.name = name;
+    this.id = id;
+    this.hash = hash;
+  }
+
+  /** Returns the symbol of a name */
+  static Symbol intern(String name) {
+    return intern(name, 0, name.length());
+  }
+
+  /**
+   * Returns the symbol spelled by a range of the source, so the Scanner only
+   * copies the characters of a name the first time it sees it.
+   */
+  static synchronized Symbol intern(CharSequence source, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + source.charAt(i);
+    }
+
+    int mask = table.length - 1;
+    int index = hash & mask;
+    for (Symbol symbol = table[index]; symbol != null; symbol = table[index]) {
+      if (symbol.hash == hash && symbol.spells(source, start, end))
+        return symbol;
+      index = (index + 1) & mask;
+    }
+
+    Symbol symbol = new Symbol(source.subSequence(start, end).toString(), count++, hash);
+    table[index] = symbol;
+    // keep the table at most half full so probes stay short
+    if (count * 2 > table.length)
+      grow();
+    return symbol;
+  }
+
+  private boolean spells(CharSequence source, int start, int end) {
+    if (name.length() != end - start)
+      return false;
+    for (int i = 0; i < name.length(); i++) {
+      if (name.charAt(i) != source.charAt(start + i))
+        return false;
+    }
+    return true;
+  }
+
+  private static void grow() {
+    Symbol[] old = table;
+    table = new Symbol[old.length * 2];
+    int mask = table.length - 1;
+    for (Symbol symbol : old) {
+      if (symbol == null)
+        continue;
+      int index = symbol.hash & mask;
+      while (table[index] != null) {
+        index = (index + 1) & mask;
+      }
+      table[index] = symbol;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,21 @@
+package com.bloxi.lox;
+
+import java.util.List;
+
+/**
+ * Call a function body returns instead of making it, because the call was in
+ * tail position. The LoxFunction.call running the body makes it next, so a
+ * chain of tail calls runs in constant stack space.
+ */
+class TailCall {
+  final LoxFunction function;
+  /** Instance a method is invoked on, or null to use the function's own receiver */
+  final LoxInstance instance;
+  final List<Object> arguments;
+
+  TailCall(LoxFunction function, LoxInstance instance, List<Object> arguments) {
+    this.function = function;
+    this.instance = instance;
+    this.arguments = arguments;
+  }
+}
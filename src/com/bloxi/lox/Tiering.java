@@ -0,0 +1,154 @@
+package com.bloxi.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts how often functions are called and how often loops go around, and
+ * promotes the hot ones out of the tree-walker. Functions are compiled to JVM
+ * classes where the JvmCompiler supports them and to closure nodes otherwise.
+ * Loops are compiled to closure nodes and continue from the iteration they
+ * were promoted in. Every engine shares the same Environments, so promoted and
+ * cold code can call each other freely.
+ */
+class Tiering {
+  private final int callThreshold;
+  private final int loopThreshold;
+  private final boolean log;
+  private final JvmCompiler jvmCompiler;
+  private final ClosureCompiler closureCompiler;
+
+  /** Counters are kept per declaration, so every closure of it counts */
+  private final Map<Stmt.Function, FunctionTier> functions = new HashMap<>();
+  private final Map<Stmt.While, LoopTier> loops = new HashMap<>();
+
+  Tiering(Interpreter interpreter, int callThreshold, int loopThreshold, boolean log) {
+    this.callThreshold = callThreshold;
+    this.loopThreshold = loopThreshold;
+    this.log = log;
+    this.jvmCompiler = new JvmCompiler();
+    this.closureCompiler = new ClosureCompiler(interpreter);
+  }
+
+  /** Returns the counting body shared by all closures of a declaration */
+  LoxFunction.Body function(Stmt.Function declaration) {
+    FunctionTier tier = functions.get(declaration);
+    if (tier == null) {
+      tier = new FunctionTier(declaration);
+      functions.put(declaration, tier);
+    }
+    return tier;
+  }
+
+  /** Returns the back-edge counter of a loop */
+  LoopTier loop(Stmt.While stmt) {
+    LoopTier tier = loops.get(stmt);
+    if (tier == null) {
+      tier = new LoopTier(stmt);
+      loops.put(stmt, tier);
+    }
+    return tier;
+  }
+
+  /** Walks a function's tree until it has been called often enough */
+  class FunctionTier implements LoxFunction.Body {
+    private final Stmt.Function declaration;
+    private int calls = 0;
+    /** Promoted body, or null while the function is cold */
+    private LoxFunction.Body optimized = null;
+
+    private FunctionTier(Stmt.Function declaration) {
+      this.declaration = declaration;
+    }
+
+    @Override
+    public Object run(Interpreter interpreter, Environment environment) {
+      if (optimized != null)
+        return optimized.run(interpreter, environment);
+
+      if (++calls >= callThreshold) {
+        promote();
+        return optimized.run(interpreter, environment);
+      }
+
+      return interpreter.executeBody(declaration.body, environment);
+    }
+
+    private void promote() {
+      String tier = "jvm";
+      optimized = jvmCompiler.compile(declaration);
+      if (optimized == null) {
+        tier = "closure";
+        optimized = closureCompiler.function(declaration);
+      }
+
+      debug("function '%s' (line %d) promoted to %s after %d calls", declaration.name.lexeme,
+          declaration.name.line, tier, calls);
+    }
+  }
+
+  /** Counts the iterations of a loop run by the tree-walker */
+  class LoopTier {
+    private final Stmt.While stmt;
+    private int backEdges = 0;
+    /** Promoted loop, or null while the loop is cold */
+    private ClosureCompiler.Action optimized = null;
+
+    private LoopTier(Stmt.While stmt) {
+      this.stmt = stmt;
+    }
+
+    boolean isPromoted() {
+      return optimized != null;
+    }
+
+    /**
+     * Counts a jump back to the loop's condition.
+     *
+     * @return true once the loop is hot and the rest of it should be run by
+     *         {@link #run}
+     */
+    boolean backEdge() {
+      if (++backEdges < loopThreshold)
+        return false;
+
+      if (optimized == null) {
+        optimized = closureCompiler.compile(stmt);
+        debug("loop (line %s) promoted to closure after %d back-edges", line(stmt.condition), backEdges);
+      }
+      return true;
+    }
+
+    /** Runs the loop from its condition in the promoted tier */
+    Completion run(Environment environment) {
+      environment.boxNumbers();
+      return optimized.execute(environment);
+    }
+  }
+
+  private void debug(String format, Object... args) {
+    if (log)
+      System.err.println("[tier] " + String.format(format, args));
+  }
+
+  /** Finds a source line for a loop, which has no token of its own */
+  private static String line(Expr expr) {
+    if (expr instanceof Expr.Binary)
+      return String.valueOf(((Expr.Binary) expr).operator.line);
+    if (expr instanceof Expr.Logical)
+      return String.valueOf(((Expr.Logical) expr).operator.line);
+    if (expr instanceof Expr.Unary)
+      return String.valueOf(((Expr.Unary) expr).operator.line);
+    if (expr instanceof Expr.Variable)
+      return String.valueOf(((Expr.Variable) expr).name.line);
+    if (expr instanceof Expr.Assign)
+      return String.valueOf(((Expr.Assign) expr).name.line);
+    if (expr instanceof Expr.Call)
+      return String.valueOf(((Expr.Call) expr).paren.line);
+    if (expr instanceof Expr.Get)
+      return String.valueOf(((Expr.Get) expr).name.line);
+    if (expr instanceof Expr.Grouping)
+      return line(((Expr.Grouping) expr).expression);
+    return "?";
+  }
+}
@@ -0,0 +1,159 @@
+package com.bloxi.lox;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Tokens of a source, kept as parallel arrays of their type, position and
+ * line instead of as Token objects. A Token, with its lexeme and literal, is
+ * only made when the Parser needs one for a node or an error, so most
+ * punctuation is never copied out of the source. The Scanner fills the buffer a batch at a
+ * time as the Parser reads on, and tokens the Parser is done with are dropped.
+ * Scan errors are held until the Parser reaches the token after them, so they
+ * are reported in source order with its errors.
+ */
+final class TokenBuffer {
+  private static final int CAPACITY = 1024;
+  private static final TokenType[] TYPES = TokenType.values();
+  /** Digits of an integer literal that a double holds exactly */
+  private static final int EXACT_DIGITS = 15;
+
+  private final CharSequence source;
+  private final Scanner scanner;
+  /** Ordinal of each token's TokenType */
+  private final byte[] types = new byte[CAPACITY];
+  private final int[] starts = new int[CAPACITY];
+  private final int[] lengths = new int[CAPACITY];
+  private final int[] lines = new int[CAPACITY];
+  /** Index of the token in the first element of the arrays */
+  private int base = 0;
+  private int size = 0;
+  /**
+   * Tokens made last, at an even and an odd index. The Parser asks for the
+   * current and previous tokens again and again, so each is made once.
+   */
+  private final Token[] made = new Token[2];
+  private final int[] madeAt = { -1, -1 };
+  /** Scan errors the Parser has not reached yet, in source order */
+  private final Queue<ScanError> errors = new ArrayDeque<>();
+
+  TokenBuffer(CharSequence source) {
+    this.source = source;
+    this.scanner = new Scanner(source, this);
+  }
+
+  /** Called by the Scanner for each token it finds */
+  void add(TokenType type, int start, int length, int line) {
+    types[size] = (byte) type.ordinal();
+    starts[size] = start;
+    lengths[size] = length;
+    lines[size] = line;
+    size++;
+  }
+
+  /** Called by the Scanner for an error, which comes before the next token it adds */
+  void error(int line, String message) {
+    errors.add(new ScanError(base + size, line, message));
+  }
+
+  boolean isFull() {
+    return size == CAPACITY;
+  }
+
+  /** Returns the type of the token at an index, without making the token */
+  TokenType type(int index) {
+    return TYPES[types[fill(index)]];
+  }
+
+  /** Returns the token at an index, making it the first time */
+  Token token(int index) {
+    int slot = index & 1;
+    if (madeAt[slot] != index) {
+      made[slot] = make(index);
+      madeAt[slot] = index;
+    }
+    return made[slot];
+  }
+
+  private Token make(int index) {
+    int i = fill(index);
+    TokenType type = TYPES[types[i]];
+    int start = starts[i];
+    int end = start + lengths[i];
+
+    switch (type) {
+      case EOF:
+        return new Token(type, "", null, lines[i]);
+      case STRING:
+        // the literal is the lexeme without its quotes
+        return new Token(type, text(start, end), text(start + 1, end - 1), lines[i]);
+      case NUMBER:
+        return new Token(type, text(start, end), number(start, end), lines[i]);
+      default:
+        // identifiers and keywords are interned, everything else is punctuation
+        if (Scanner.isAlpha(source.charAt(start)))
+          return new Token(type, Symbol.intern(source, start, end), lines[i]);
+        return new Token(type, text(start, end), null, lines[i]);
+    }
+  }
+
+  /**
+   * Makes sure the token at an index has been scanned. The Parser only looks
+   * back one token, so older ones are dropped to make room for more.
+   *
+   * @return position of the token in the arrays
+   */
+  private int fill(int index) {
+    if (index >= base + size) {
+      int drop = Math.min(size, Math.max(index - 1 - base, 0));
+      System.arraycopy(types, drop, types, 0, size - drop);
+      System.arraycopy(starts, drop, starts, 0, size - drop);
+      System.arraycopy(lengths, drop, lengths, 0, size - drop);
+      System.arraycopy(lines, drop, lines, 0, size - drop);
+      base += drop;
+      size -= drop;
+
+      scanner.scan();
+      if (index >= base + size)
+        throw new IllegalStateException("Read past the end of the tokens.");
+    }
+
+    while (!errors.isEmpty() && errors.peek().index <= index) {
+      ScanError error = errors.remove();
+      Lox.error(error.line, error.message);
+    }
+    return index - base;
+  }
+
+  private String text(int start, int end) {
+    return source.subSequence(start, end).toString();
+  }
+
+  /** Value of a number literal, summed up digit by digit when it is a short integer */
+  private double number(int start, int end) {
+    if (end - start > EXACT_DIGITS)
+      return Double.parseDouble(text(start, end));
+
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      char c = source.charAt(i);
+      if (c == '.')
+        return Double.parseDouble(text(start, end));
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static class ScanError {
+    /** Index of the token after the error */
+    final int index;
+    final int line;
+    final String message;
+
+    ScanError(int index, int line, String message) {
+      this.index = index;
+      this.line = line;
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package com.bloxi.lox;
+
+/**
+ * Thrown by the Interpreter's unboxed number path when an expression turns out
+ * not to produce a number. It carries the value, so the caller can finish the
+ * operation generically without evaluating the expression again.
+ */
+class UnexpectedResult extends RuntimeException {
+  final Object value;
+
+  UnexpectedResult(Object value) {
+    super(null, null, false, false);
+    this.value = value;
+  }
+}
@@ -0,0 +1,33 @@
+package com.bloxi.lox;
+
+/**
+ * Box of a local variable that inner functions capture. The declaring frame
+ * keeps it in the variable's slot, and every closure that captures the
+ * variable keeps it in its upvalues, so all of them see the same value.
+ * Variables nobody captures are stored in their slot directly.
+ */
+class Upvalue {
+  Object value;
+
+  Upvalue(Object value) {
+    this.value = value;
+  }
+
+  /**
+   * Collects the upvalues of a new closure from the frame its declaration
+   * runs in. Each entry of the declaration's upvalue list is a slot of that
+   * frame, or -1 - n for the nth upvalue of the enclosing closure itself.
+   */
+  static Upvalue[] capture(Stmt.Function declaration, Environment frame) {
+    int[] sources = declaration.upvalues;
+    if (sources.length == 0)
+      return Environment.NO_UPVALUES;
+
+    Upvalue[] upvalues = new Upvalue[sources.length];
+    for (int i = 0; i < sources.length; i++) {
+      int source = sources[i];
+      upvalues[i] = source >= 0 ? (Upvalue) frame.slots[source] : frame.upvalues[-1 - source];
+    }
+    return upvalues;
+  }
+}
@@ -0,0 +1,364 @@
+package com.bloxi.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs chunks produced by the Compiler. Every call of a compiled function
+ * runs its own dispatch loop with its own operand stack, while the frames and
+ * runtime objects are the ones the tree-walker uses.
+ */
+class VM {
+  private final Interpreter interpreter;
+
+  VM(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  /** Runs a top level script whose frame has the given number of slots */
+  void interpret(Chunk script, int slotCount) {
+    try {
+      run(script, new Environment(slotCount, Environment.NO_UPVALUES));
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  /**
+   * Runs a chunk until it returns.
+   *
+   * @param chunk       chunk to run
+   * @param environment frame the code runs in
+   * @return returned value
+   */
+  Object run(Chunk chunk, Environment environment) {
+    final byte[] code = chunk.code;
+    final Object[] constants = chunk.constants;
+    final Object[] stack = new Object[chunk.maxStack];
+    int sp = 0;
+    int ip = 0;
+
+    for (;;) {
+      int start = ip;
+      switch (code[ip++]) {
+        case OpCode.CONSTANT:
+          stack[sp++] = constants[readShort(code, ip)];
+          ip += 2;
+          break;
+        case OpCode.NIL:
+          stack[sp++] = null;
+          break;
+        case OpCode.TRUE:
+          stack[sp++] = true;
+          break;
+        case OpCode.FALSE:
+          stack[sp++] = false;
+          break;
+        case OpCode.POP:
+          sp--;
+          break;
+
+        case OpCode.GET_LOCAL:
+          stack[sp++] = environment.slots[readShort(code, ip)];
+          ip += 2;
+          break;
+        case OpCode.SET_LOCAL:
+          environment.slots[readShort(code, ip)] = stack[sp - 1];
+          ip += 2;
+          break;
+        case OpCode.GET_BOXED:
+          stack[sp++] = ((Upvalue) environment.slots[readShort(code, ip)]).value;
+          ip += 2;
+          break;
+        case OpCode.SET_BOXED:
+          ((Upvalue) environment.slots[readShort(code, ip)]).value = stack[sp - 1];
+          ip += 2;
+          break;
+        case OpCode.GET_UPVALUE:
+          stack[sp++] = environment.upvalues[readShort(code, ip)].value;
+          ip += 2;
+          break;
+        case OpCode.SET_UPVALUE:
+          environment.upvalues[readShort(code, ip)].value = stack[sp - 1];
+          ip += 2;
+          break;
+        case OpCode.GET_GLOBAL: {
+          Expr.Variable site = (Expr.Variable) constants[readShort(code, ip)];
+          ip += 2;
+          stack[sp++] = Global.of(interpreter.globals, site).get(site.name);
+          break;
+        }
+        case OpCode.SET_GLOBAL: {
+          Expr.Assign site = (Expr.Assign) constants[readShort(code, ip)];
+          ip += 2;
+          Global.of(interpreter.globals, site).assign(site.name, stack[sp - 1]);
+          break;
+        }
+        case OpCode.DEFINE_GLOBAL:
+          interpreter.globals.define(((Token) constants[readShort(code, ip)]).symbol, stack[--sp]);
+          ip += 2;
+          break;
+        case OpCode.IMPORT: {
+          Module module = (Module) constants[readShort(code, ip)];
+          ip += 2;
+          if (module.start()) {
+            Chunk compiled = new Compiler().compile(module.statements);
+            // skip the module if it was too large to compile
+            if (!Lox.hadError)
+              run(compiled, new Environment(module.slotCount, Environment.NO_UPVALUES));
+          }
+          break;
+        }
+        case OpCode.DEFINE_LOCAL:
+          environment.slots[readShort(code, ip)] = stack[--sp];
+          ip += 2;
+          break;
+        case OpCode.BOX:
+          environment.slots[readShort(code, ip)] = new Upvalue(null);
+          ip += 2;
+          break;
+
+        case OpCode.GET_PROPERTY: {
+          PropertyCache cache = (PropertyCache) constants[readShort(code, ip)];
+          ip += 2;
+          stack[sp - 1] = cache.get(stack[sp - 1]);
+          break;
+        }
+        case OpCode.SET_PROPERTY: {
+          PropertyCache cache = (PropertyCache) constants[readShort(code, ip)];
+          ip += 2;
+          Object value = stack[--sp];
+          Object object = stack[sp - 1];
+          if (!(object instanceof LoxInstance))
+            throw new RuntimeError(cache.name, "Only instances have fields.");
+          cache.set((LoxInstance) object, value);
+          stack[sp - 1] = value;
+          break;
+        }
+        case OpCode.GET_SUPER: {
+          PropertyCache cache = (PropertyCache) constants[readShort(code, ip)];
+          ip += 2;
+          LoxInstance object = (LoxInstance) stack[--sp];
+          LoxClass superclass = (LoxClass) stack[sp - 1];
+          stack[sp - 1] = cache.getSuper(superclass, object);
+          break;
+        }
+
+        case OpCode.EQUAL: {
+          Object rhs = stack[--sp];
+          stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], rhs);
+          break;
+        }
+        case OpCode.GREATER: {
+          Object rhs = stack[--sp];
+          Object lhs = stack[sp - 1];
+          checkNumberOperands(chunk, start, lhs, rhs);
+          stack[sp - 1] = (double) lhs > (double) rhs;
+          break;
+        }
+        case OpCode.GREATER_EQUAL: {
+          Object rhs = stack[--sp];
+          Object lhs = stack[sp - 1];
+          checkNumberOperands(chunk, start, lhs, rhs);
+          stack[sp - 1] = (double) lhs >= (double) rhs;
+          break;
+        }
+        case OpCode.LESS: {
+          Object rhs = stack[--sp];
+          Object lhs = stack[sp - 1];
+          checkNumberOperands(chunk, start, lhs, rhs);
+          stack[sp - 1] = (double) lhs < (double) rhs;
+          break;
+        }
+        case OpCode.LESS_EQUAL: {
+          Object rhs = stack[--sp];
+          Object lhs = stack[sp - 1];
+          checkNumberOperands(chunk, start, lhs, rhs);
+          stack[sp - 1] = (double) lhs <= (double) rhs;
+          break;
+        }
+        case OpCode.ADD: {
+          Object rhs = stack[--sp];
+          Object lhs = stack[sp - 1];
+          if (lhs instanceof Double && rhs instanceof Double) {
+            stack[sp - 1] = (double) lhs + (double) rhs;
+          } else if (Interpreter.isString(lhs) || Interpreter.isString(rhs)) {
+            stack[sp - 1] = Rope.concat(lhs, rhs);
+          } else {
+            throw error(chunk, start, "At least one of the operands must be a string.");
+          }
+          break;
+        }
+        case OpCode.SUBTRACT: {
+          Object rhs = stack[--sp];
+          Object lhs = stack[sp - 1];
+          checkNumberOperands(chunk, start, lhs, rhs);
+          stack[sp - 1] = (double) lhs - (double) rhs;
+          break;
+        }
+        case OpCode.MULTIPLY: {
+          Object rhs = stack[--sp];
+          Object lhs = stack[sp - 1];
+          checkNumberOperands(chunk, start, lhs, rhs);
+          stack[sp - 1] = (double) lhs * (double) rhs;
+          break;
+        }
+        case OpCode.DIVIDE: {
+          Object rhs = stack[--sp];
+          Object lhs = stack[sp - 1];
+          checkNumberOperands(chunk, start, lhs, rhs);
+          if ((double) rhs == 0)
+            throw error(chunk, start, "Cannot divide by zero.");
+          stack[sp - 1] = (double) lhs / (double) rhs;
+          break;
+        }
+        case OpCode.NOT:
+          stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+          break;
+        case OpCode.NEGATE:
+          if (!(stack[sp - 1] instanceof Double))
+            throw error(chunk, start, "Operand must be a number.");
+          stack[sp - 1] = -(double) stack[sp - 1];
+          break;
+
+        case OpCode.PRINT:
+          System.out.println(Interpreter.stringify(stack[--sp]));
+          break;
+        case OpCode.JUMP:
+          ip += readShort(code, ip) + 2;
+          break;
+        case OpCode.JUMP_IF_FALSE:
+          if (Interpreter.isTruthy(stack[sp - 1])) {
+            ip += 2;
+          } else {
+            ip += readShort(code, ip) + 2;
+          }
+          break;
+        case OpCode.LOOP:
+          ip = ip + 2 - readShort(code, ip);
+          break;
+        case OpCode.CALL:
+        case OpCode.TAIL_CALL: {
+          int argCount = code[ip++] & 0xff;
+          List<Object> arguments = new ArrayList<>(argCount);
+          for (int i = sp - argCount; i < sp; i++) {
+            arguments.add(stack[i]);
+          }
+          sp -= argCount;
+          Object callee = stack[sp - 1];
+
+          if (!(callee instanceof LoxCallable))
+            throw error(chunk, start, "Can only call functions and classes.");
+
+          LoxCallable function = (LoxCallable) callee;
+          if (argCount != function.arity())
+            throw error(chunk, start, Interpreter.arityMessage(function, argCount));
+          if (code[start] == OpCode.TAIL_CALL && function instanceof LoxFunction) {
+            stack[sp - 1] = new TailCall((LoxFunction) function, null, arguments);
+          } else {
+            stack[sp - 1] = function.call(interpreter, arguments);
+          }
+          break;
+        }
+        case OpCode.GET_METHOD: {
+          PropertyCache cache = (PropertyCache) constants[readShort(code, ip)];
+          ip += 2;
+          Object object = stack[sp - 1];
+          LoxFunction method = cache.method(object);
+          if (method == null)
+            stack[sp - 1] = cache.get(object);
+          stack[sp++] = method;
+          break;
+        }
+        case OpCode.INVOKE:
+        case OpCode.TAIL_INVOKE: {
+          int argCount = code[ip++] & 0xff;
+          List<Object> arguments = new ArrayList<>(argCount);
+          for (int i = sp - argCount; i < sp; i++) {
+            arguments.add(stack[i]);
+          }
+          sp -= argCount;
+          LoxFunction method = (LoxFunction) stack[--sp];
+          Object callee = stack[sp - 1];
+
+          if (method == null && !(callee instanceof LoxCallable))
+            throw error(chunk, start, "Can only call functions and classes.");
+
+          LoxCallable function = method != null ? method : (LoxCallable) callee;
+          if (argCount != function.arity())
+            throw error(chunk, start, Interpreter.arityMessage(function, argCount));
+
+          boolean tail = code[start] == OpCode.TAIL_INVOKE;
+          if (method != null) {
+            stack[sp - 1] = tail ? new TailCall(method, (LoxInstance) callee, arguments)
+                : method.invoke(interpreter, (LoxInstance) callee, arguments);
+          } else if (tail && function instanceof LoxFunction) {
+            stack[sp - 1] = new TailCall((LoxFunction) function, null, arguments);
+          } else {
+            stack[sp - 1] = function.call(interpreter, arguments);
+          }
+          break;
+        }
+        case OpCode.CLOSURE: {
+          Chunk body = (Chunk) constants[readShort(code, ip)];
+          ip += 2;
+          stack[sp++] = new LoxFunction(body.declaration, Upvalue.capture(body.declaration, environment), false, body);
+          break;
+        }
+        case OpCode.CLASS: {
+          Stmt.Class stmt = (Stmt.Class) constants[readShort(code, ip)];
+          ip += 2;
+
+          Object superclass = null;
+          if (stmt.superclass != null) {
+            superclass = stack[--sp];
+            if (!(superclass instanceof LoxClass)) {
+              throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+            }
+            environment.slots[stmt.superSlot] = new Upvalue(superclass);
+          }
+
+          Map<Symbol, LoxFunction> methods = new HashMap<>();
+          for (Stmt.Function method : stmt.methods) {
+            Chunk body = (Chunk) constants[readShort(code, ip)];
+            ip += 2;
+            LoxFunction function = new LoxFunction(method, Upvalue.capture(method, environment),
+                method.name.symbol == Symbol.INIT, body);
+            methods.put(method.name.symbol, function);
+          }
+
+          // the class is defined by the instruction that follows
+          stack[sp++] = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+          break;
+        }
+        case OpCode.RETURN:
+          return stack[sp - 1];
+
+        default:
+          throw new IllegalStateException(String.format("Unknown opcode %d", code[start]));
+      }
+    }
+  }
+
+  private static int readShort(byte[] code, int ip) {
+    return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+  }
+
+  private static void checkNumberOperands(Chunk chunk, int ip, Object lhs, Object rhs) {
+    if (lhs instanceof Double && rhs instanceof Double)
+      return;
+
+    throw error(chunk, ip, "Operands must be numbers.");
+  }
+
+  /**
+   * Creates a runtime error for the instruction at the given offset. The line
+   * is taken from the chunk's line table.
+   */
+  private static RuntimeError error(Chunk chunk, int ip, String message) {
+    Token token = new Token(TokenType.EOF, "", null, chunk.lines[ip]);
+    return new RuntimeError(token, message);
+  }
+}
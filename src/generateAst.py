@@ -14,18 +14,18 @@ def main():
     baseName = "Expr"
     astTypes = [
         ["Literal", ["Object value"]],
-        ["Unary", ["Token operator", "Expr right"]],
-        ["Binary", ["Expr left", "Token operator", "Expr right"]],
+        ["Unary", ["Token operator", "Expr right"], ["byte specialization"]],
+        ["Binary", ["Expr left", "Token operator", "Expr right"], ["byte specialization"]],
         ["Ternary", ["Expr condition", "Expr trueExpr", "Expr falseExpr"]],
         ["Grouping", ["Expr expression"]],
-        ["Variable", ["Token name"]],
-        ["Assign", ["Token name", "Expr value"]],
-        ["Logical", ["Expr left", "Token operator", "Expr right"]],
+        ["Variable", ["Token name"], ["byte access", "int slot", "Global global"]],
+        ["Assign", ["Token name", "Expr value"], ["byte access", "int slot", "Global global"]],
+        ["Logical", ["Expr left", "Token operator", "Expr right"], ["byte specialization"]],
         ["Call", ["Expr callee", "Token paren", "List<Expr> arguments"]],
-        ["Get", ["Expr object", "Token name"]],
-        ["Set" ,["Expr object", "Token name", "Expr value"]],
-        ["This", ["Token keyword"]],
-        ["Super", ["Token keyword", "Token method"]],
+        ["Get", ["Expr object", "Token name"], ["PropertyCache cache"]],
+        ["Set" ,["Expr object", "Token name", "Expr value"], ["PropertyCache cache"]],
+        ["This", ["Token keyword"], ["byte access", "int slot"]],
+        ["Super", ["Token keyword", "Token method"], ["PropertyCache cache", "Expr.Variable superclass", "Expr.This receiver"]],
     ]
     defineAst(outputDir, baseName, astTypes)
 
@@ -35,13 +35,14 @@ def main():
         ["Block", ["List<Stmt> statements"]],
         ["Expression", ["Expr expression"]],
         ["Print", ["Expr expression"]],
-        ["Var", ["Token name", "Expr initializer"]],
+        ["Var", ["Token name", "Expr initializer"], ["int slot = -1", "boolean captured"]],
         ["If", ["Expr condition", "Stmt thenBranch", "Stmt elseBranch"]],
-        ["While", ["Expr condition", "Stmt body"]],
+        ["While", ["Expr condition", "Stmt body"], ["CountedLoop counted"]],
         ["Break", ["Token token"]],
-        ["Function", ["Token name", "List<Token> params", "List<Stmt> body"]],
-        ["Return", ["Token keyword", "Expr value"]],
-        ["Class", ["Token name", "Expr.Variable superclass", "List<Stmt.Function> methods"]],
+        ["Function", ["Token name", "List<Token> params", "List<Stmt> body"], ["int slot = -1", "boolean captured", "int slotCount", "int[] upvalues", "int[] boxedParams"]],
+        ["Return", ["Token keyword", "Expr value"], ["boolean tailCall"]],
+        ["Class", ["Token name", "Expr.Variable superclass", "List<Stmt.Function> methods"], ["int slot = -1", "boolean captured", "int superSlot = -1"]],
+        ["Import", ["Token keyword", "Token path"], ["Module module"]],
     ]
     defineAst(outputDir, baseName, astTypes)
 
@@ -65,10 +66,13 @@ def defineAst(outputDir, baseName, astTypes):
     code.append(" " * 2 + "abstract <R> R accept(Visitor<R> visitor);")
 
     # define the classes
+    # an optional third list holds mutable state the resolver and the
+    # interpreter keep on the node, which is not passed to the constructor
     for classType in astTypes:
         className = classType[0]
         fields = classType[1]
-        classCode = defineType(baseName, className, fields)
+        stateFields = classType[2] if len(classType) > 2 else []
+        classCode = defineType(baseName, className, fields, stateFields)
         code.append("")
         code.extend(classCode)
 
@@ -94,7 +98,7 @@ def defineVisitor(baseName, types):
     return code
 
 
-def defineType(baseName, className, fields):
+def defineType(baseName, className, fields, stateFields):
     code = []
 
     code.append(
@@ -104,6 +108,10 @@ def defineType(baseName, className, fields):
     # fields
     for field in fields:
         code.append(" " * 4 + "final {0};".format(field))
+    if stateFields:
+        code.append(" " * 4 + "// runtime state, not part of the tree")
+    for field in stateFields:
+        code.append(" " * 4 + "{0};".format(field))
     code.append("")
 
     # constructor